@@ -0,0 +1,286 @@
+package comp0012.main;
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+
+
+//Rewrites algebraic identities with one operand that is a constant or that reads the same local twice, which
+//folding cannot touch since it needs every operand to be constant:
+//  x + 0, x - 0, x * 1, x / 1, x & -1, x | 0, x ^ 0, x << 0      x
+//  x * 0, x & 0, x | -1                                           the constant, x is popped
+//  x % 1, x % -1                                                  0, x is popped
+//  x * -1, x / -1, 0 - x                                          -x
+//  x - x, x ^ x, lcmp(x, x)                                       0
+//  x & x, x | x                                                   x
+//  -(-x), (int) (long) x, (int) (double) x, (float) (double) x   x
+//  (byte) (byte) x, (byte) (short) x, (short) (byte) x, ...       one conversion
+//For float and double only the rules that hold for every value are used: x + -0.0, x - 0.0, x * 1.0 and
+//x / 1.0 are x, x * -1.0, x / -1.0 and -0.0 - x are -x. x + 0.0 is not x for x = -0.0, x * 0.0 is not 0 for
+//NaN, the infinities and the negative numbers, and x - x is NaN for NaN and the infinities, so those stay.
+//
+//The constant is the instruction pushed right before the operation, or for the operations where the order
+//does not matter it may come before a load of the other operand. The popped values are left to
+//DeadCodeElimination, which removes them with the pure code computing them.
+public class AlgebraicSimplification
+{
+	//what x op c leaves
+	static final byte NONE = 0;
+	static final byte LEFT = 1;
+	//x
+	static final byte CONSTANT = 2;
+	//c
+	static final byte NEGATED = 3;
+	static final byte ZERO = 4;
+
+	MethodGen mg;
+	InstructionList instList;
+	ConstantPoolGen cpgen;
+
+	ConstantStack constant = new ConstantStack(1);
+	int simplified = 0;
+
+	public AlgebraicSimplification(MethodGen mg, ConstantPoolGen cpgen)
+	{
+		this.mg = mg;
+		this.instList = mg.getInstructionList();
+		this.cpgen = cpgen;
+	}
+
+	public int run()
+	{
+		//returns the number of operations simplified
+		InstructionHandle handle = instList.getStart();
+		while (handle != null){
+			InstructionHandle next = handle.getNext();
+			if (!handle.hasTargeters() && handle.getPrev() != null){
+				if (!simplifyConversion(handle) && !simplifySameOperands(handle)){
+					simplifyConstantOperand(handle);
+				}
+			}
+			handle = next;
+		}
+		return simplified;
+	}
+
+	public int getSimplified()
+	{
+		return simplified;
+	}
+
+	private boolean simplifyConversion(InstructionHandle op)
+	{
+		//two negations or conversions in a row, where the second undoes the first or repeats it
+		InstructionHandle prev = op.getPrev();
+		short first = prev.getInstruction().getOpcode();
+		short second = op.getInstruction().getOpcode();
+		if ((first == Const.INEG && second == Const.INEG) || (first == Const.LNEG && second == Const.LNEG)
+				|| (first == Const.FNEG && second == Const.FNEG) || (first == Const.DNEG && second == Const.DNEG)
+				|| (first == Const.I2L && second == Const.L2I) || (first == Const.I2D && second == Const.D2I)
+				|| (first == Const.F2D && second == Const.D2F)){
+			replace(prev, op);
+			//every int is a long and a double, every float is a double, so the way back is exact
+			return true;
+		}
+		if ((first == Const.I2B || first == Const.I2S || first == Const.I2C) && first == second){
+			replace(prev, op, op.getInstruction().copy());
+			return true;
+		} else if ((first == Const.I2B && second == Const.I2S) || (first == Const.I2S && second == Const.I2B)){
+			replace(prev, op, InstructionConst.I2B);
+			//the low byte sign extended either way
+			return true;
+		}
+		return false;
+	}
+
+	private boolean simplifySameOperands(InstructionHandle op)
+	{
+		//x op x for an int or long local x
+		InstructionHandle second = op.getPrev();
+		InstructionHandle first = second.getPrev();
+		if (first == null || second.hasTargeters() || !(first.getInstruction() instanceof LoadInstruction)
+				|| !first.getInstruction().equals(second.getInstruction())){
+			return false;
+		}
+		switch (op.getInstruction().getOpcode()){
+			case Const.ISUB: case Const.IXOR:
+				replace(first, op, InstructionConst.ICONST_0);
+				return true;
+			case Const.LSUB: case Const.LXOR:
+				replace(first, op, InstructionConst.LCONST_0);
+				return true;
+			case Const.LCMP:
+				replace(first, op, InstructionConst.ICONST_0);
+				return true;
+			case Const.IAND: case Const.IOR: case Const.LAND: case Const.LOR:
+				replace(first, op, first.getInstruction().copy());
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private boolean simplifyConstantOperand(InstructionHandle op)
+	{
+		short opcode = op.getInstruction().getOpcode();
+		byte type = operandType(opcode);
+		if (type < 0){
+			return false;
+		}
+		boolean wide = type == ConstantStack.LONG || type == ConstantStack.DOUBLE;
+		boolean shift = opcode >= Const.ISHL && opcode <= Const.LUSHR;
+		InstructionHandle prev = op.getPrev();
+		constant.clear();
+		if (constant.push(prev.getInstruction(), cpgen) && constant.peekType() == (shift ? ConstantStack.INT : type)){
+			//x c op
+			switch (identity(opcode, type, true)){
+				case LEFT:
+					replace(prev, op);
+					return true;
+				case CONSTANT:
+					replace(prev, op, wide ? InstructionConst.POP2 : InstructionConst.POP, prev.getInstruction().copy());
+					return true;
+				case ZERO:
+					replace(prev, op, wide ? InstructionConst.POP2 : InstructionConst.POP, zero(type));
+					return true;
+				case NEGATED:
+					replace(prev, op, negate(type));
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		InstructionHandle below = prev.getPrev();
+		constant.clear();
+		if (below == null || prev.hasTargeters() || !(prev.getInstruction() instanceof LoadInstruction)
+				|| !constant.push(below.getInstruction(), cpgen) || constant.peekType() != type){
+			return false;
+		}
+		//c x op, with x a local
+		Instruction load = prev.getInstruction().copy();
+		switch (identity(opcode, type, false)){
+			case LEFT:
+				replace(below, op, load);
+				return true;
+			case CONSTANT:
+				replace(below, op, below.getInstruction().copy());
+				return true;
+			case NEGATED:
+				replace(below, op, load, negate(type));
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private byte identity(short opcode, byte type, boolean constantOnTop)
+	{
+		//the rule for x op c if constantOnTop and for c op x otherwise, c is on the constant stack
+		if (type == ConstantStack.INT || type == ConstantStack.LONG){
+			long c = constant.peekLong();
+			switch (opcode){
+				case Const.IADD: case Const.LADD: case Const.IOR: case Const.LOR: case Const.IXOR: case Const.LXOR:
+					return c == 0 ? LEFT : c == -1 && (opcode == Const.IOR || opcode == Const.LOR) ? CONSTANT : NONE;
+				case Const.IMUL: case Const.LMUL:
+					return c == 1 ? LEFT : c == 0 ? CONSTANT : c == -1 ? NEGATED : NONE;
+				case Const.IAND: case Const.LAND:
+					return c == -1 ? LEFT : c == 0 ? CONSTANT : NONE;
+				default:
+			}
+			if (!constantOnTop){
+				return (opcode == Const.ISUB || opcode == Const.LSUB) && c == 0 ? NEGATED : NONE;
+			}
+			switch (opcode){
+				case Const.ISUB: case Const.LSUB:
+					return c == 0 ? LEFT : NONE;
+				case Const.IDIV: case Const.LDIV:
+					return c == 1 ? LEFT : c == -1 ? NEGATED : NONE;
+				case Const.IREM: case Const.LREM:
+					return c == 1 || c == -1 ? ZERO : NONE;
+				case Const.ISHL: case Const.ISHR: case Const.IUSHR:
+					return (c & 31) == 0 ? LEFT : NONE;
+				case Const.LSHL: case Const.LSHR: case Const.LUSHR:
+					return (c & 63) == 0 ? LEFT : NONE;
+				default:
+					return NONE;
+			}
+		}
+
+		double c = constant.popDouble();
+		boolean negativeZero = Double.compare(c, -0.0) == 0;
+		//compare tells the zeros apart, == does not
+		switch (opcode){
+			case Const.FADD: case Const.DADD:
+				return negativeZero ? LEFT : NONE;
+			case Const.FMUL: case Const.DMUL:
+				return c == 1.0 ? LEFT : c == -1.0 ? NEGATED : NONE;
+			case Const.FSUB: case Const.DSUB:
+				if (!constantOnTop){
+					return negativeZero ? NEGATED : NONE;
+				}
+				return Double.compare(c, 0.0) == 0 ? LEFT : NONE;
+			case Const.FDIV: case Const.DDIV:
+				return !constantOnTop ? NONE : c == 1.0 ? LEFT : c == -1.0 ? NEGATED : NONE;
+			default:
+				return NONE;
+		}
+	}
+
+	private static byte operandType(short opcode)
+	{
+		//type of x for the binary operations with identities, -1 for the others
+		switch (opcode){
+			case Const.IADD: case Const.ISUB: case Const.IMUL: case Const.IDIV: case Const.IREM:
+			case Const.IAND: case Const.IOR: case Const.IXOR: case Const.ISHL: case Const.ISHR: case Const.IUSHR:
+				return ConstantStack.INT;
+			case Const.LADD: case Const.LSUB: case Const.LMUL: case Const.LDIV: case Const.LREM:
+			case Const.LAND: case Const.LOR: case Const.LXOR: case Const.LSHL: case Const.LSHR: case Const.LUSHR:
+				return ConstantStack.LONG;
+			case Const.FADD: case Const.FSUB: case Const.FMUL: case Const.FDIV:
+				return ConstantStack.FLOAT;
+			case Const.DADD: case Const.DSUB: case Const.DMUL: case Const.DDIV:
+				return ConstantStack.DOUBLE;
+			default:
+				return -1;
+		}
+	}
+
+	private static Instruction zero(byte type)
+	{
+		return type == ConstantStack.LONG ? InstructionConst.LCONST_0 : InstructionConst.ICONST_0;
+	}
+
+	private static Instruction negate(byte type)
+	{
+		switch (type){
+			case ConstantStack.INT: return InstructionConst.INEG;
+			case ConstantStack.LONG: return InstructionConst.LNEG;
+			case ConstantStack.FLOAT: return InstructionConst.FNEG;
+			default: return InstructionConst.DNEG;
+		}
+	}
+
+	private void replace(InstructionHandle first, InstructionHandle last, Instruction... code)
+	{
+		//code takes the place of first up to last, a jump to first lands on its start or, if there is no code,
+		//on the instruction after last. Only first may be a target.
+		InstructionHandle after = last.getNext();
+		InstructionHandle handle = first;
+		if (code.length > 0){
+			first.setInstruction(code[0]);
+			for (int i = 1; i < code.length; i++){
+				handle = instList.append(handle, code[i]);
+			}
+			first = handle.getNext();
+		}
+		try {
+			instList.delete(first, last);
+		} catch (TargetLostException e) {
+			for (InstructionHandle target : e.getTargets()){
+				for (InstructionTargeter targeter : target.getTargeters()){
+					targeter.updateTarget(target, after);
+				}
+			}
+		}
+		simplified++;
+	}
+}
@@ -0,0 +1,275 @@
+package comp0012.main;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+
+public class BatchOptimizer
+{
+	ForkJoinPool pool = null;
+	ClassCache cache = null;
+
+	int optimizedCount = 0;
+	int failedCount = 0;
+
+	public BatchOptimizer()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public BatchOptimizer(int parallelism)
+	{
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	public void setCache(ClassCache cache)
+	{
+		//classes that were already optimized are served from the cache, in memory or on disk
+		this.cache = cache;
+	}
+
+	public void optimize(String inputPath, String outputPath) throws IOException
+	{
+		File input = new File(inputPath);
+		File output = new File(outputPath);
+
+		optimizedCount = 0;
+		failedCount = 0;
+
+		if (inputPath.equals("-") || outputPath.equals("-")){
+			//"-" pipes a jar through stdin/stdout, the summary goes to stderr to keep stdout clean
+			try (InputStream in = inputPath.equals("-") ? standardInput() : new BufferedInputStream(new FileInputStream(input));
+					OutputStream out = outputPath.equals("-") ? standardOutput() : new BufferedOutputStream(new FileOutputStream(output))) {
+				optimizeStream(in, out);
+				out.flush();
+			}
+			System.err.println("Optimised " + optimizedCount + " classes (" + failedCount + " kept unchanged)");
+			return;
+		} else if (input.isDirectory()){
+			optimizeDirectory(input.toPath(), output.toPath());
+		} else {
+			optimizeJar(input, output);
+		}
+		System.out.println("Optimised " + optimizedCount + " classes (" + failedCount + " kept unchanged) using " + pool.getParallelism() + " threads");
+		if (cache != null){
+			System.out.println(cache);
+		}
+	}
+
+	private void optimizeDirectory(Path input, Path output) throws IOException
+	{
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(input)) {
+			files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+
+		//every file gets its own task, classes are optimized and everything else is copied as is
+		ArrayList<Future<Boolean>> tasks = new ArrayList<>();
+		for (Path file : files){
+			Path target = output.resolve(input.relativize(file));
+			tasks.add(pool.submit(() -> {
+				Files.createDirectories(target.getParent());
+				byte[] original = Files.readAllBytes(file);
+				byte[] result = original;
+				if (isClass(file.toString())){
+					result = optimizeClass(original, file.toString());
+				}
+				Files.write(target, result);
+				return result != original;
+			}));
+		}
+		collect(tasks);
+	}
+
+	private void optimizeJar(File input, File output) throws IOException
+	{
+		if (output.getParentFile() != null){
+			output.getParentFile().mkdirs();
+		}
+		try (InputStream in = new BufferedInputStream(new FileInputStream(input));
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+			optimizeStream(in, out);
+		}
+	}
+
+	public void optimizeStream(InputStream input, OutputStream output) throws IOException
+	{
+		//Entries are read one at a time and classes are handed to the pool while reading continues.
+		//Results are written in entry order and at most window entries are held in memory, so a jar
+		//can be piped through without exploding it to disk. The caller owns both streams.
+		ZipInputStream in = new ZipInputStream(input);
+		ZipOutputStream out = new ZipOutputStream(output);
+		ArrayDeque<ZipEntry> entries = new ArrayDeque<>();
+		ArrayDeque<Future<byte[]>> results = new ArrayDeque<>();
+		int window = pool.getParallelism() * 16;
+
+		ZipEntry entry;
+		while ((entry = in.getNextEntry()) != null){
+			byte[] original = in.readAllBytes();
+			String name = entry.getName();
+			if (isClass(name)){
+				results.add(pool.submit(() -> optimizeClass(original, name)));
+			} else {
+				results.add(CompletableFuture.completedFuture(original));
+			}
+			entries.add(entry);
+
+			if (results.size() >= window){
+				writeEntry(out, entries.poll(), get(results.poll()));
+			}
+		}
+		while (!results.isEmpty()){
+			writeEntry(out, entries.poll(), get(results.poll()));
+		}
+		out.finish();
+	}
+
+	private void writeEntry(ZipOutputStream out, ZipEntry original, byte[] data) throws IOException
+	{
+		ZipEntry entry = new ZipEntry(original.getName());
+		entry.setTime(original.getTime());
+		entry.setExtra(original.getExtra());
+		entry.setComment(original.getComment());
+		if (original.getMethod() == ZipEntry.STORED){
+			//stored entries stay stored and bypass the deflater, only their size and crc are needed
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(data.length);
+			entry.setCompressedSize(data.length);
+			entry.setCrc(crc.getValue());
+		}
+		out.putNextEntry(entry);
+		out.write(data);
+		out.closeEntry();
+	}
+
+	byte[] optimizeClass(byte[] original, String name)
+	{
+		//fall back to the original bytes if the folder cannot handle this class
+		try {
+			String key = null;
+			if (cache != null){
+				key = OptimizedClassCache.keyFor(original, ConstantFolder.defaultConfigKey());
+				byte[] cached = cache.get(key);
+				if (cached != null){
+					synchronized (this) {
+						optimizedCount++;
+					}
+					return cached;
+				}
+			}
+			ConstantFolder folder = new ConstantFolder(new ByteArrayInputStream(original), name);
+			if (!folder.canOptimize()){
+				//the folder would break it, e.g. lambdas or try/catch, it is written out byte for byte
+				synchronized (this) {
+					failedCount++;
+				}
+				return original;
+			}
+			folder.setVerbose(false);
+			byte[] optimized = folder.toByteArray();
+			if (cache != null){
+				cache.put(key, optimized);
+			}
+			synchronized (this) {
+				optimizedCount++;
+			}
+			return optimized;
+		} catch (Exception e) {
+			System.err.println("Could not optimise " + name + ": " + e);
+			synchronized (this) {
+				failedCount++;
+			}
+			return original;
+		}
+	}
+
+	private static InputStream standardInput()
+	{
+		//System.in behind a close that does nothing, the try above must not close the process's stdin
+		return new FilterInputStream(System.in) {
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private static OutputStream standardOutput()
+	{
+		//System.out behind a close that only flushes, so stdout stays usable after the jar is written
+		return new BufferedOutputStream(new FilterOutputStream(System.out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		});
+	}
+
+	private boolean isClass(String name)
+	{
+		return name.endsWith(".class");
+	}
+
+	private <T> void collect(List<Future<T>> tasks) throws IOException
+	{
+		for (Future<T> task : tasks){
+			get(task);
+		}
+	}
+
+	private <T> T get(Future<T> task) throws IOException
+	{
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while optimising", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Optimisation task failed", e.getCause());
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		BatchOptimizer optimizer = new BatchOptimizer();
+		int i = 0;
+		if (args.length == 4 && args[0].equals("--cache-dir")){
+			optimizer.setCache(new DiskClassCache(args[1], DiskClassCache.DEFAULT_MAX_BYTES));
+			i = 2;
+		}
+		if (args.length - i != 2){
+			System.err.println("Usage: BatchOptimizer [--cache-dir <dir>] <input.jar|input dir|-> <output.jar|output dir|->");
+			System.exit(1);
+		}
+		optimizer.optimize(args[i], args[i + 1]);
+	}
+}
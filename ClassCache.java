@@ -0,0 +1,10 @@
+package comp0012.main;
+
+
+public interface ClassCache
+{
+	//key is built by OptimizedClassCache.keyFor, value is the optimized class file
+	byte[] get(String key);
+
+	void put(String key, byte[] value);
+}
@@ -1,16 +1,31 @@
 package comp0012.main;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.sql.Struct;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Stack;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.Attribute;
 import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantClass;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.ConstantString;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.Method;
 import org.apache.bcel.generic.*;
@@ -25,7 +40,24 @@ public class ConstantFolder
 	JavaClass original = null;
 	JavaClass optimized = null;
 
-	Stack<Number> constantStack = null;
+	//bump whenever a change to the passes changes their output, persistent caches are keyed on it
+	public static final int VERSION = 14;
+
+	//passes that can be switched off with disablePass, in the order they run
+	public static final String[] PASSES = {"sccp", "unroll", "algebra", "gvn", "copy", "dse", "dce", "strength", "jump"};
+	HashSet<String> disabledPasses = new HashSet<>();
+
+	//class attributes of version 53 and later that mean something version 50 would not enforce
+	static final List<String> NEWER_CLASS_ATTRIBUTES = Arrays.asList("NestHost", "NestMembers", "Record", "PermittedSubclasses", "Module");
+
+	ConstantStack constantStack = new ConstantStack();
+	//reused by every fold, it only allocates when it has to grow
+
+	boolean verbose = true;
+	boolean parallelMethods = false;
+	int unrollFactor = LoopUnrolling.DEFAULT_FACTOR;
+
+	MethodCache methodCache = null;
 
 	public ConstantFolder(String classFilePath)
 	{
@@ -38,14 +70,95 @@ public class ConstantFolder
 		}
 	}
 
+	public ConstantFolder(InputStream classStream, String fileName)
+	{
+		//used when the class is not a plain file on disk, e.g. an entry of a jar
+		try{
+			this.parser = new ClassParser(classStream, fileName);
+			this.original = this.parser.parse();
+			this.gen = new ClassGen(this.original);
+		} catch(IOException e){
+			e.printStackTrace();
+		}
+	}
+
+	public ConstantFolder(byte[] classBytes)
+	{
+		this(new ByteArrayInputStream(classBytes), "<memory>");
+	}
+
+	public ConstantFolder(ByteBuffer classBuffer)
+	{
+		//reads the remaining bytes of the buffer, its position ends up at the limit
+		this(toArray(classBuffer));
+	}
+
+	ConstantFolder(JavaClass original)
+	{
+		//worker used by the parallel method mode, it only needs the class and its own constant stack
+		this.original = original;
+		this.verbose = false;
+	}
+
+	public void setVerbose(boolean verbose)
+	{
+		//batch runs optimize thousands of classes, keep the console quiet for them
+		this.verbose = verbose;
+	}
+
+	public void setParallelMethods(boolean parallelMethods)
+	{
+		//fold the methods of one class concurrently, see optimizeMethodsInParallel
+		this.parallelMethods = parallelMethods;
+	}
+
+	public void setUnrollFactor(int unrollFactor)
+	{
+		//copies of the body per iteration of a loop too long to unroll completely, 1 leaves such loops alone
+		if (unrollFactor < 1) {
+			throw new IllegalArgumentException("Unroll factor " + unrollFactor + " is less than 1");
+		}
+		this.unrollFactor = unrollFactor;
+	}
+
+	public void setMethodCache(MethodCache methodCache)
+	{
+		//methods whose code and referenced constants were folded before are replayed instead of refolded
+		this.methodCache = methodCache;
+	}
+
+	public void disablePass(String pass)
+	{
+		//run without one of the PASSES, e.g. to find which one breaks a class
+		if (!Arrays.asList(PASSES).contains(pass)) {
+			throw new IllegalArgumentException("Unknown pass " + pass + ", the passes are " + Arrays.toString(PASSES));
+		}
+		disabledPasses.add(pass);
+	}
+
+	boolean isEnabled(String pass)
+	{
+		return !disabledPasses.contains(pass);
+	}
+
+	private ConstantFolder newWorker()
+	{
+		//a worker folds methods with the same settings but its own constant stack
+		ConstantFolder worker = new ConstantFolder(original);
+		worker.methodCache = methodCache;
+		worker.disabledPasses = disabledPasses;
+		worker.unrollFactor = unrollFactor;
+		return worker;
+	}
+
 	private void safelyDeleteInst(InstructionHandle handle, InstructionList instList){
 		//Delete Dead instructions without raising exceptions
+		InstructionHandle new_target = handle.getNext() != null ? handle.getNext() : handle.getPrev();
 		try {
 			instList.delete(handle);
 		} catch (TargetLostException e) {
-			//redirect deleted targets to existing targets
+			//redirect deleted targets to the instruction that now comes in their place
 			InstructionHandle[] targets = e.getTargets();
-			InstructionHandle new_target = instList.getStart();
 			for (InstructionHandle target : targets) {
 				InstructionTargeter[] targeters = target.getTargeters();
 				for (InstructionTargeter targeter : targeters)
@@ -56,11 +169,11 @@ public class ConstantFolder
 
 	private void safelyDeleteInst(InstructionHandle handle1, InstructionHandle handle2, InstructionList instList){
 		//overloading method to delete multiple handles
+		InstructionHandle new_target = handle2.getNext() != null ? handle2.getNext() : handle1.getPrev();
 		try {
 			instList.delete(handle1, handle2);
 		} catch (TargetLostException e) {
 			InstructionHandle[] targets = e.getTargets();
-			InstructionHandle new_target = instList.getStart();
 			for (InstructionHandle target : targets) {
 				InstructionTargeter[] targeters = target.getTargeters();
 				for (InstructionTargeter targeter : targeters)
@@ -72,27 +185,110 @@ public class ConstantFolder
 
 	public void optimize()
 	{
+		if (original == null) {
+			throw new IllegalStateException("No class to optimise, the class file could not be parsed");
+		}
 		ClassGen cgen = new ClassGen(original);
 		ConstantPoolGen cpgen = cgen.getConstantPool();
 
 		// Implement your optimization here
-		System.out.println("Starting optimisation on class " + cgen.getClassName());
+		if (verbose) System.out.println("Starting optimisation on class " + cgen.getClassName());
 
 		// Set major version to allow for a non-updated StackMapTable that BCEL cannot generate.
 		cgen.setMajor(50);
 
 		// Get the methods in the class.
 		Method[] methods = cgen.getMethods();
-		for (Method m : methods) {
-			// Loop through each method, optimizing each.
-			System.out.println("* Optimizing method " + m.getName() + "...");
-			optimizeMethod(cgen, cpgen, m);
+		if (parallelMethods && methods.length > 1) {
+			optimizeMethodsInParallel(cgen, cpgen, methods);
+		} else {
+			for (Method m : methods) {
+				// Loop through each method, optimizing each.
+				if (m.getCode() == null) {
+					continue;
+					//abstract and native methods have nothing to fold
+				}
+				if (verbose) System.out.println("* Optimizing method " + m.getName() + "...");
+				optimizeMethod(cgen, cpgen, m);
+			}
 		}
 
 		this.optimized = cgen.getJavaClass();
 	}
 
+	private void optimizeMethodsInParallel(ClassGen cgen, ConstantPoolGen cpgen, Method[] methods)
+	{
+		//Each chunk of methods is folded by its own worker against a private copy of the constant pool.
+		//The copies share every entry below baseSize with cpgen, so only the entries a chunk added need
+		//to be merged back. Merging walks the methods in class order, which keeps the output deterministic.
+		ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+		int baseSize = cpgen.getSize();
+		int chunks = Math.min(methods.length, pool.getParallelism() * 4);
+		int chunkSize = (methods.length + chunks - 1) / chunks;
+
+		ArrayList<ForkJoinTask<MethodGen[]>> tasks = new ArrayList<>();
+		ArrayList<ConstantPoolGen> pools = new ArrayList<>();
+		for (int from = 0; from < methods.length; from += chunkSize) {
+			int start = from;
+			int end = Math.min(methods.length, from + chunkSize);
+			ConstantPoolGen delta = new ConstantPoolGen(cpgen.getFinalConstantPool());
+			ConstantFolder worker = newWorker();
+			pools.add(delta);
+			tasks.add(pool.submit(() -> {
+				MethodGen[] folded = new MethodGen[end - start];
+				for (int i = start; i < end; i++) {
+					if (methods[i].getCode() != null) {
+						folded[i - start] = worker.foldMethod(cgen, delta, methods[i]);
+					}
+				}
+				return folded;
+			}));
+		}
+
+		for (int chunk = 0; chunk < tasks.size(); chunk++) {
+			MethodGen[] folded = tasks.get(chunk).join();
+			HashMap<Integer, Integer> remapped = new HashMap<>();
+			for (int i = 0; i < folded.length; i++) {
+				if (folded[i] == null) {
+					continue;
+				}
+				Method method = methods[chunk * chunkSize + i];
+				if (verbose) System.out.println("* Optimizing method " + method.getName() + "...");
+				mergeConstants(folded[i].getInstructionList(), pools.get(chunk), cpgen, baseSize, remapped);
+				folded[i].setConstantPool(cpgen);
+				finishMethod(cgen, method, folded[i]);
+			}
+		}
+	}
+
+	static void mergeConstants(InstructionList instList, ConstantPoolGen from, ConstantPoolGen to, int firstNew, HashMap<Integer, Integer> remapped)
+	{
+		//move the constants a worker added to its private pool into the shared one and fix the indices
+		for (InstructionHandle handle : instList.getInstructionHandles()) {
+			if (!(handle.getInstruction() instanceof CPInstruction)) {
+				continue;
+			}
+			CPInstruction inst = (CPInstruction) handle.getInstruction();
+			if (inst.getIndex() < firstNew) {
+				continue;
+			}
+			Integer index = remapped.get(inst.getIndex());
+			if (index == null) {
+				index = to.addConstant(from.getConstant(inst.getIndex()), from);
+				remapped.put(inst.getIndex(), index);
+			}
+			inst.setIndex(index);
+			//LDC switches to LDC_W by itself when the new index does not fit in a byte
+		}
+	}
+
 	private void optimizeMethod(ClassGen cgen, ConstantPoolGen cpgen, Method method)
+	{
+		MethodGen mg = foldMethod(cgen, cpgen, method);
+		finishMethod(cgen, method, mg);
+	}
+
+	private MethodGen foldMethod(ClassGen cgen, ConstantPoolGen cpgen, Method method)
 	{
 		// Get the Code of the method, which is a collection of bytecode instructions
 		Code methodCode = method.getCode();
@@ -101,18 +297,72 @@ public class ConstantFolder
 		// and use it to initialise an InstructionList
 		InstructionList instList = new InstructionList(methodCode.getCode());
 
+		String cacheKey = null;
+		if (methodCache != null) {
+			cacheKey = MethodCache.keyFor(instList, cpgen, passConfig());
+			InstructionList cached = methodCache.replay(cacheKey, cpgen);
+			if (cached != null) {
+				//same code and constants were folded before, reuse the folded instructions
+				instList.dispose();
+				return new MethodGen(method.getAccessFlags(), method.getReturnType(), method.getArgumentTypes(), null, method.getName(), cgen.getClassName(), cached, cpgen);
+			}
+		}
+
 		// Initialise a method generator with the original method as the baseline
 		MethodGen mg = new MethodGen(method.getAccessFlags(), method.getReturnType(), method.getArgumentTypes(), null, method.getName(), cgen.getClassName(), instList, cpgen);
 
+		boolean[] unresolved = null;
+		if (isEnabled("sccp")) {
+			unresolved = propagateConstants(mg, cpgen);
+			//runs first, on the code as javac emitted it
+		}
+		if (unresolved == null) {
+			unresolved = findAmbiguousSlots(mg);
+		}
+
 		doSimpleFolding(cgen, cpgen, instList);
 
 		//Constant Var Folding is included in the DynamicFolding Method
 		//but it still provides result that keeps the folded
 		//doConstantVariableFolding(cgen,cpgen,instList);
 
-		doDynamicFolding(cgen,cpgen,instList);
-		removeunnecessaryLDCs(instList);
+		doDynamicFolding(cgen,cpgen,instList,unresolved);
 		//doDynamicFolding(cgen, cpgen, instList);
+
+		if (isEnabled("unroll")) {
+			unrollLoops(cgen, mg, cpgen);
+		}
+		if (isEnabled("algebra")) {
+			simplifyAlgebra(cgen, mg, cpgen);
+		}
+		if (isEnabled("gvn")) {
+			numberValues(mg, cpgen);
+		}
+		if (isEnabled("copy")) {
+			propagateCopies(mg, cpgen);
+		}
+		if (isEnabled("dse")) {
+			eliminateDeadStores(mg, cpgen);
+		}
+		if (isEnabled("dce")) {
+			eliminateDeadCode(mg, cpgen);
+		}
+		if (isEnabled("strength")) {
+			reduceStrength(mg, cpgen);
+		}
+		if (isEnabled("jump")) {
+			threadJumps(mg, cpgen);
+		}
+
+		if (methodCache != null) {
+			methodCache.store(cacheKey, instList, cpgen);
+		}
+		return mg;
+	}
+
+	private void finishMethod(ClassGen cgen, Method method, MethodGen mg)
+	{
+		InstructionList instList = mg.getInstructionList();
 		instList.setPositions(true);
 
 		// set max stack/local
@@ -127,318 +377,261 @@ public class ConstantFolder
 	}
 
 
-	private void doSimpleFolding(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList) {
-		constantStack = new Stack<Number>();
-		ArrayList<InstructionHandle> InstructionToRemove = new ArrayList<>();
-
-		for (InstructionHandle handle:instList.getInstructionHandles()){
-			InstructionHandle next = handle.getNext();
-			Instruction inst = handle.getInstruction();
-			boolean nextMatches = false;
-			boolean isArithOp = inst instanceof ArithmeticInstruction;
-			boolean isCmp = inst instanceof IfInstruction;
-			boolean isLCMP = inst instanceof LCMP;
-			if (next == null){
-				nextMatches = false;
-			} else {
-				Instruction nextInst = next.getInstruction();
-				if (nextInst instanceof ConversionInstruction || nextInst instanceof LDC || nextInst instanceof LDC2_W || nextInst instanceof ConstantPushInstruction || nextInst instanceof ArithmeticInstruction || nextInst instanceof IfInstruction || nextInst instanceof LCMP){
-					nextMatches = true;
-					//Only consider the simplest case: 2 continueous LDCs followed with an arithmeticInstruction, LCMP or ifInstruction (might have conversion between them)
-				}
-			}
-
-			Number constant = null;
-			//for simple folding, only LDC, LDC2_W, ConstantPush have to be considered.
-			if (inst instanceof LDC && nextMatches){
-				constant = (Number)((LDC)inst).getValue(cpgen);
-				constantStack.push(constant);
-				//push the constant to the stack, when an arithmetical or logical operation is met, the top 2 constant will be pop from the stack.
-				InstructionToRemove.add(handle);
-			} else if (inst instanceof LDC2_W && nextMatches){
-				constant = (Number)((LDC2_W)inst).getValue(cpgen);
-				constantStack.push(constant);
-				InstructionToRemove.add(handle);
-			} else if (inst instanceof ConstantPushInstruction && nextMatches){
-				constant = ((ConstantPushInstruction)inst).getValue();
-				constantStack.push(constant);
-				InstructionToRemove.add(handle);
-			} else if (isArithOp){
-				if (constantStack.size() == 1){
-					constantStack.pop();
-					InstructionToRemove.clear();
-					continue;
-				} else if (constantStack.size() == 0) {
-					InstructionToRemove.clear();
-					continue;
-				}
-				//Avoid messing up the stack. This is because that store and load instructions are ignored.
-				doArithOp(inst);
+	private boolean[] propagateConstants(MethodGen mg, ConstantPoolGen cpgen) {
+		//Replace the loads of locals that are constant on every path, see ConstantPropagation. Returns the slots
+		//some load still reads, or null if the method could not be analysed and nothing was changed.
+		ConstantPropagation sccp = new ConstantPropagation(mg, cpgen);
+		try {
+			sccp.run();
+		} catch (RuntimeException e) {
+			if (verbose) System.out.println("  constant propagation skipped: " + e);
+			return null;
+		}
+		if (verbose) System.out.println("  constant propagation: " + sccp.getRewrittenLoads() + " loads replaced, " + sccp.getUnreachableBlocks().size() + " unreachable blocks");
+		return sccp.getUnresolvedSlots();
+	}
 
-				for (InstructionHandle remove:InstructionToRemove){
-					safelyDeleteInst(remove, instList);
-					//remove the previous LDCs and Constantpushes that are already calculated.
-				}
-				Number result = constantStack.pop();
-
-				if (result instanceof Integer){
-					instList.insert(handle, new LDC(cpgen.addInteger((Integer)result)));
-					//Pre-compute these arithmetical instructions, and then replace the arithmetical instructions with LDCs.
-				} else if (result instanceof Float){
-					instList.insert(handle, new LDC(cpgen.addFloat((Float)result)));
-				} else if (result instanceof Double){
-					instList.insert(handle, new LDC2_W(cpgen.addDouble((Double)result)));
-				} else if (result instanceof Long){
-					instList.insert(handle, new LDC2_W(cpgen.addLong((Long)result)));
-				}
-				constantStack.push(result);
-				safelyDeleteInst(handle, instList);
-				InstructionToRemove.clear();
-			} else if (inst instanceof ConversionInstruction && nextMatches){
-				InstructionToRemove.add(handle);
-				//Delete the conversion, because the result is already calculated
-			} else if (isCmp){
-				if (constantStack.size() == 1 && !(inst instanceof IFLE)){
-					//IFLE is a special case to be considered because it only requires to pop one constant from the stack
-					constantStack.pop();
-					InstructionToRemove.clear();
-					continue;
-				} else if (constantStack.size() == 0) {
-					InstructionToRemove.clear();
-					continue;
-				}
-				InstructionHandle ifTarget = ((IfInstruction) handle.getInstruction()).getTarget();
-				InstructionHandle gotoHandle = handle.getNext();
-				while (!(gotoHandle.getInstruction() instanceof GOTO)){
-					gotoHandle = gotoHandle.getNext();
-					if (gotoHandle == null){
-						//goto not found, no else part
-						if (doLogicOp(handle)){
-							safelyDeleteInst(handle, instList);
-							//If the comparison succeed, remove the ifnstruction.
-						} else {
-							safelyDeleteInst(handle, ifTarget.getPrev(), instList);
-							//else remove the if part.
-						}
-					}
-				}
+	private void unrollLoops(ClassGen cgen, MethodGen mg, ConstantPoolGen cpgen) {
+		//Unroll counted loops with a known number of iterations, see LoopUnrolling. The counter is a constant in
+		//each copy of a fully unrolled loop, so the method is propagated and folded again.
+		LoopUnrolling unrolling = new LoopUnrolling(mg, cpgen, unrollFactor);
+		if (unrolling.run() == 0) {
+			return;
+		}
+		if (verbose) System.out.println("  loop unrolling: " + unrolling.getFullyUnrolled() + " loops unrolled, " + unrolling.getPartiallyUnrolled() + " unrolled by " + unrollFactor);
+		if (unrolling.getFullyUnrolled() > 0 && isEnabled("sccp")) {
+			propagateConstants(mg, cpgen);
+		}
+		doSimpleFolding(cgen, cpgen, mg.getInstructionList());
+	}
 
-				InstructionHandle gotoTarget = ((GotoInstruction) gotoHandle.getInstruction()).getTarget();
+	private void simplifyAlgebra(ClassGen cgen, MethodGen mg, ConstantPoolGen cpgen) {
+		//Rewrite identities like x * 1 and x - x, see AlgebraicSimplification. What they leave can be a constant
+		//operand of the next operation, so the run is folded again until neither finds anything.
+		int simplified = 0;
+		int round;
+		while ((round = new AlgebraicSimplification(mg, cpgen).run()) > 0) {
+			simplified += round;
+			doSimpleFolding(cgen, cpgen, mg.getInstructionList());
+		}
+		if (verbose) System.out.println("  algebraic simplification: " + simplified + " identities rewritten");
+	}
 
-				if (gotoTarget.getPosition() < gotoHandle.getPosition()){
-					constantStack.clear();
-					InstructionToRemove.clear();
-					continue;
-					//do not consider loops
-				}
+	private void numberValues(MethodGen mg, ConstantPoolGen cpgen) {
+		//compute repeated expressions once, see GlobalValueNumbering
+		int reused = new GlobalValueNumbering(mg, cpgen).run();
+		if (verbose) System.out.println("  value numbering: " + reused + " expressions reused");
+	}
 
-				if (doLogicOp(handle)){
-					safelyDeleteInst(gotoHandle, ifTarget, instList);
-					safelyDeleteInst(handle, instList);
-					//If the comparison succeed, remove the else part.
-				} else {
-					safelyDeleteInst(handle, gotoHandle, instList);
-					//else remove the if part.
-				}
-				for (InstructionHandle remove:InstructionToRemove){
-					safelyDeleteInst(remove, instList);
-				}
-				InstructionToRemove.clear();
-			} else if (isLCMP){
-				if (constantStack.size() == 1){
-					constantStack.pop();
-					InstructionToRemove.clear();
-					continue;
-				} else if (constantStack.size() == 0) {
-					InstructionToRemove.clear();
-					continue;
-				}
+	private void propagateCopies(MethodGen mg, ConstantPoolGen cpgen) {
+		//read the original slot instead of copies of it, see CopyPropagation
+		CopyPropagation copies = new CopyPropagation(mg, cpgen);
+		copies.run();
+		if (verbose) System.out.println("  copy propagation: " + copies.getRewrittenLoads() + " loads rewritten, " + copies.getReusedStores() + " stores reused");
+	}
 
-				Number first = constantStack.pop();
-				Number second = constantStack.pop();
-				Number result;
+	private void eliminateDeadStores(MethodGen mg, ConstantPoolGen cpgen) {
+		//remove the stores folding left without a load, see DeadStoreElimination
+		int removed = new DeadStoreElimination(mg, cpgen).run();
+		if (verbose) System.out.println("  dead stores: " + removed + " removed");
+	}
 
-				if ((Long) first > (Long) second) {
-					result = 1;
-				} else if ((Long) first < (Long) second) {
-					result = -1;
-				} else {
-					result = 0;
-				}
+	private void eliminateDeadCode(MethodGen mg, ConstantPoolGen cpgen) {
+		//remove the blocks folding cut off and values nothing uses, see DeadCodeElimination
+		int removed = new DeadCodeElimination(mg, cpgen).run();
+		if (verbose) System.out.println("  dead code: " + removed + " bytes removed");
+	}
 
-				constantStack.push(result);
+	private void reduceStrength(MethodGen mg, ConstantPoolGen cpgen) {
+		//multiply, divide and take remainders by constants with shifts, see StrengthReduction
+		int reduced = new StrengthReduction(mg, cpgen).run();
+		if (verbose) System.out.println("  strength reduction: " + reduced + " operations reduced");
+	}
 
-				for (InstructionHandle remove:InstructionToRemove){
-					safelyDeleteInst(remove, instList);
-				}
+	private void threadJumps(MethodGen mg, ConstantPoolGen cpgen) {
+		//take the GOTOs folding leaves behind out of the way, see JumpThreading
+		JumpThreading jumps = new JumpThreading(mg, cpgen);
+		jumps.run();
+		if (verbose) System.out.println("  jump threading: " + jumps.getRetargeted() + " branches retargeted, " + jumps.getRemovedJumps() + " jumps removed, " + jumps.getInvertedBranches() + " branches inverted");
+	}
 
-				safelyDeleteInst(handle, instList);
-				InstructionToRemove.clear();
+	private void doSimpleFolding(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList) {
+		foldHandles(cpgen, instList, instList.getInstructionHandles());
+	}
 
-			}
+	private void doSimpleFolding(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList, InstructionHandle startHandle, InstructionHandle endHandle) {
+		//only fold part of the instructions, from startHandle up to but not including endHandle
+		ArrayList<InstructionHandle> handles = new ArrayList<>();
+		for (InstructionHandle handle = startHandle; handle != null && handle != endHandle; handle = handle.getNext()){
+			handles.add(handle);
 		}
+		foldHandles(cpgen, instList, handles.toArray(new InstructionHandle[0]));
 	}
 
-	private void doSimpleFolding(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList, InstructionHandle endHandle) {
-		//only fold part of the instructions
-		constantStack = new Stack<Number>();
+	private void foldHandles(ConstantPoolGen cpgen, InstructionList instList, InstructionHandle[] handles) {
+		//Folds runs of instructions that only compute constants. constantStack holds the values pushed by the
+		//run so far and InstructionToRemove the handle pushing each of them, every operation replaces the pushes
+		//of its operands by one LDC of the result. Anything else ends the run, so the stack always matches the
+		//top of the real operand stack.
+		//handles is a snapshot, the ones deleted while folding have no instruction left and end the run
+		constantStack.clear();
 		ArrayList<InstructionHandle> InstructionToRemove = new ArrayList<>();
-		for (InstructionHandle handle:instList.getInstructionHandles()){
-			if (handle.equals(endHandle)){
-				break;
-			}
-			InstructionHandle next = handle.getNext();
+		int foldedBranches = 0;
+
+		for (InstructionHandle handle:handles){
 			Instruction inst = handle.getInstruction();
-			boolean nextMatches = false;
-			boolean isArithOp = inst instanceof ArithmeticInstruction;
-			boolean isCmp = inst instanceof IfInstruction;
-			boolean isLCMP = inst instanceof LCMP;
-			if (next == null){
-				nextMatches = false;
-			} else {
-				Instruction nextInst = next.getInstruction();
-				if (nextInst instanceof ConversionInstruction || nextInst instanceof LDC || nextInst instanceof LDC2_W || nextInst instanceof ConstantPushInstruction || nextInst instanceof ArithmeticInstruction || nextInst instanceof IfInstruction || nextInst instanceof LCMP){
-					nextMatches = true;
-					//Only consider the simplest case: 2 continueous LDCs followed with an arithmeticInstruction, LCMP or ifInstruction (might have conversion between them)
-				}
+			if (inst == null || handle.hasTargeters()){
+				constantStack.clear();
+				InstructionToRemove.clear();
+				//another path joins here with its own stack, only fold what starts at this handle
+			}
+			if (inst == null){
+				continue;
 			}
+			int arity = Evaluator.arity(inst.getOpcode());
 
-			Number constant = null;
-			//for simple folding, only LDC, LDC2_W, ConstantPush have to be considered.
-			if (inst instanceof LDC && nextMatches){
-				constant = (Number)((LDC)inst).getValue(cpgen);
-				constantStack.push(constant);
-				//push the constant to the stack, when an arithmetical or logical operation is met, the top 2 constant will be pop from the stack.
-				InstructionToRemove.add(handle);
-			} else if (inst instanceof LDC2_W && nextMatches){
-				constant = (Number)((LDC2_W)inst).getValue(cpgen);
-				constantStack.push(constant);
-				InstructionToRemove.add(handle);
-			} else if (inst instanceof ConstantPushInstruction && nextMatches){
-				constant = ((ConstantPushInstruction)inst).getValue();
-				constantStack.push(constant);
-				InstructionToRemove.add(handle);
-			} else if (isArithOp){
-				if (constantStack.size() == 1){
-					constantStack.pop();
-					InstructionToRemove.clear();
-					continue;
-				} else if (constantStack.size() == 0) {
+			if (inst instanceof LDC || inst instanceof LDC2_W || inst instanceof ConstantPushInstruction){
+				if (!constantStack.push(inst, cpgen)){
+					constantStack.clear();
 					InstructionToRemove.clear();
 					continue;
+					//not a number, e.g. a String, nothing before it can be folded through it
 				}
-				//Avoid messing up the stack. This is because that store and load instructions are ignored.
-				doArithOp(inst);
-
-				for (InstructionHandle remove:InstructionToRemove){
-					safelyDeleteInst(remove, instList);
-					//remove the previous LDCs and Constantpushes that are already calculated.
-				}
-				Number result = constantStack.pop();
-
-				if (result instanceof Integer){
-					instList.insert(handle, new LDC(cpgen.addInteger((Integer)result)));
-					//Pre-compute these arithmetical instructions, and then replace the arithmetical instructions with LDCs.
-				} else if (result instanceof Float){
-					instList.insert(handle, new LDC(cpgen.addFloat((Float)result)));
-				} else if (result instanceof Double){
-					instList.insert(handle, new LDC2_W(cpgen.addDouble((Double)result)));
-				} else if (result instanceof Long){
-					instList.insert(handle, new LDC2_W(cpgen.addLong((Long)result)));
-				}
-				constantStack.push(result);
-				safelyDeleteInst(handle, instList);
-				InstructionToRemove.clear();
-			} else if (inst instanceof ConversionInstruction && nextMatches){
 				InstructionToRemove.add(handle);
-				//Delete the conversion, because the result is already calculated
-			} else if (isCmp){
-				if (constantStack.size() == 1 && !(inst instanceof IFLE)){
-					//IFLE is a special case to be considered because it only requires to pop one constant from the stack
-					constantStack.pop();
-					InstructionToRemove.clear();
-					continue;
-				} else if (constantStack.size() == 0) {
-					InstructionToRemove.clear();
-					continue;
-				}
-				InstructionHandle ifTarget = ((IfInstruction) handle.getInstruction()).getTarget();
-				InstructionHandle gotoHandle = handle.getNext();
-				while (!(gotoHandle.getInstruction() instanceof GOTO)){
-					gotoHandle = gotoHandle.getNext();
-					if (gotoHandle == null){
-						//goto not found, no else part
-						if (doLogicOp(handle)){
-							safelyDeleteInst(handle, instList);
-							//If the comparison succeed, remove the ifnstruction.
-						} else {
-							safelyDeleteInst(handle, ifTarget.getPrev(), instList);
-							//else remove the if part.
-						}
-					}
-				}
-
-				InstructionHandle gotoTarget = ((GotoInstruction) gotoHandle.getInstruction()).getTarget();
-
-				if (gotoTarget.getPosition() < gotoHandle.getPosition()){
+			} else if (arity >= 0){
+				if (constantStack.size() < arity || !Evaluator.evaluate(inst.getOpcode(), constantStack)){
 					constantStack.clear();
 					InstructionToRemove.clear();
 					continue;
-					//do not consider loops
+					//an operand is not a constant, or it would throw (integer division by zero) and is left to run
 				}
-
-				if (doLogicOp(handle)){
-					safelyDeleteInst(gotoHandle, ifTarget, instList);
-					safelyDeleteInst(handle, instList);
-					//If the comparison succeed, remove the else part.
-				} else {
-					safelyDeleteInst(handle, gotoHandle, instList);
-					//else remove the if part.
-				}
-				for (InstructionHandle remove:InstructionToRemove){
+				List<InstructionHandle> operands = InstructionToRemove.subList(InstructionToRemove.size() - arity, InstructionToRemove.size());
+				moveTargeters(operands.get(0), handle);
+				//a jump to the first operand computes the same result, it now lands on the result
+				for (InstructionHandle remove : operands){
 					safelyDeleteInst(remove, instList);
 				}
-				InstructionToRemove.clear();
-			} else if (isLCMP){
-				if (constantStack.size() == 1){
-					constantStack.pop();
-					InstructionToRemove.clear();
-					continue;
-				} else if (constantStack.size() == 0) {
-					InstructionToRemove.clear();
-					continue;
+				operands.clear();
+				handle.setInstruction(constantStack.peekInstruction(cpgen));
+				InstructionToRemove.add(handle);
+				//the operation is replaced in place by an LDC of its result, which may be an operand of the next one
+			} else if (inst instanceof IfInstruction){
+				int compared = Evaluator.branchArity(inst.getOpcode());
+				if (compared > 0 && constantStack.size() >= compared){
+					List<InstructionHandle> operands = InstructionToRemove.subList(InstructionToRemove.size() - compared, InstructionToRemove.size());
+					foldBranch(handle, operands, Evaluator.branchTaken(inst.getOpcode(), constantStack), instList);
+					foldedBranches++;
+				} else if (compared < 0 && foldReferenceBranch(handle, cpgen, instList)){
+					foldedBranches++;
 				}
-
-				Number first = constantStack.pop();
-				Number second = constantStack.pop();
-				Number result;
-
-				if ((Long) first > (Long) second) {
-					result = 1;
-				} else if ((Long) first < (Long) second) {
-					result = -1;
-				} else {
-					result = 0;
+				constantStack.clear();
+				InstructionToRemove.clear();
+			} else if (inst instanceof Select && constantStack.size() >= 1){
+				Select select = (Select) inst;
+				int key = constantStack.popInt();
+				InstructionHandle target = select.getTarget();
+				for (int i = 0; i < select.getMatchs().length; i++){
+					if (select.getMatchs()[i] == key){
+						target = select.getTargets()[i];
+						break;
+					}
 				}
+				handle.setInstruction(new GOTO(target));
+				//a switch on a constant always goes the same way
+				List<InstructionHandle> operands = InstructionToRemove.subList(InstructionToRemove.size() - 1, InstructionToRemove.size());
+				foldBranch(handle, operands, true, instList);
+				foldedBranches++;
+				constantStack.clear();
+				InstructionToRemove.clear();
+			} else {
+				constantStack.clear();
+				InstructionToRemove.clear();
+			}
+		}
+		if (foldedBranches > 0){
+			new DeadCodeElimination(instList, cpgen).removeUnreachableBlocks();
+			//the arms the folded branches no longer reach
+		}
+	}
 
-				constantStack.push(result);
-
-				for (InstructionHandle remove:InstructionToRemove){
-					safelyDeleteInst(remove, instList);
-				}
+	private void foldBranch(InstructionHandle handle, List<InstructionHandle> operands, boolean taken, InstructionList instList) {
+		//A branch whose outcome is known becomes a GOTO to its target if it is taken and disappears if it is not.
+		//The pushes of its operands go with it, a jump to the first of them lands where the branch leads.
+		InstructionHandle dest = handle;
+		if (taken && handle.getInstruction() instanceof IfInstruction){
+			handle.setInstruction(new GOTO(((IfInstruction) handle.getInstruction()).getTarget()));
+		} else if (!taken){
+			dest = handle.getNext();
+		}
+		if (!operands.isEmpty()){
+			moveTargeters(operands.get(0), dest);
+		}
+		for (InstructionHandle remove : new ArrayList<>(operands)){
+			safelyDeleteInst(remove, instList);
+		}
+		operands.clear();
+		if (!taken){
+			moveTargeters(handle, dest);
+			safelyDeleteInst(handle, instList);
+		}
+	}
 
-				safelyDeleteInst(handle, instList);
-				InstructionToRemove.clear();
+	private boolean foldReferenceBranch(InstructionHandle handle, ConstantPoolGen cpgen, InstructionList instList) {
+		//IFNULL, IFNONNULL and IF_ACMPxx on null or on String and Class constants, which are never null and are
+		//the same object exactly when they are the same constant
+		short opcode = handle.getInstruction().getOpcode();
+		int compared = opcode == Const.IFNULL || opcode == Const.IFNONNULL ? 1 : opcode == Const.IF_ACMPEQ || opcode == Const.IF_ACMPNE ? 2 : 0;
+		ArrayList<InstructionHandle> operands = new ArrayList<>();
+		InstructionHandle operand = handle;
+		for (int i = 0; i < compared; i++){
+			if (operand.hasTargeters() || operand.getPrev() == null || referenceConstant(operand.getPrev().getInstruction(), cpgen) == null){
+				return false;
+			}
+			operand = operand.getPrev();
+			operands.add(0, operand);
+		}
+		if (compared == 0){
+			return false;
+		}
+		boolean taken;
+		if (compared == 1){
+			taken = referenceConstant(operands.get(0).getInstruction(), cpgen).isEmpty() == (opcode == Const.IFNULL);
+		} else {
+			boolean same = referenceConstant(operands.get(0).getInstruction(), cpgen).equals(referenceConstant(operands.get(1).getInstruction(), cpgen));
+			taken = same == (opcode == Const.IF_ACMPEQ);
+		}
+		foldBranch(handle, operands, taken, instList);
+		return true;
+	}
 
+	private static String referenceConstant(Instruction inst, ConstantPoolGen cpgen) {
+		//a key for the reference inst pushes, "" for null, null if it is not a constant
+		if (inst instanceof ACONST_NULL){
+			return "";
+		} else if (inst instanceof LDC){
+			Constant constant = cpgen.getConstant(((LDC) inst).getIndex());
+			if (constant instanceof ConstantString){
+				return "s" + ((ConstantString) constant).getBytes(cpgen.getConstantPool());
+			} else if (constant instanceof ConstantClass){
+				return "c" + ((ConstantClass) constant).getBytes(cpgen.getConstantPool());
 			}
 		}
+		return null;
 	}
 
-	private HashMap<Integer, Boolean> findConstantVar(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList){
+	private static void moveTargeters(InstructionHandle from, InstructionHandle to) {
+		for (InstructionTargeter targeter : from.getTargeters()){
+			targeter.updateTarget(from, to);
+		}
+	}
+
+	private LocalLattice findConstantVar(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList){
 		InstructionHandle start = instList.getStart();
 		InstructionHandle end = instList.getEnd();
 
-		HashMap<Integer, Boolean> Vars = new HashMap<>();
+		LocalLattice Vars = LocalLattice.forMethod(instList);
+		boolean[] stored = new boolean[Vars.size()];
+		//slots written more than once end up overdefined, the others are left unknown
 
 		InstructionFinder finder = new InstructionFinder(instList);
 		String keyword = "StoreInstruction | IINC";
@@ -462,11 +655,11 @@ public class ConstantFolder
 				System.err.println("FATAL: doConstantVariableFolding: localIdx not assigned.");
 			}
 
-			if (!Vars.containsKey(localIdx)) {
-				Vars.put(localIdx, true);
+			if (!stored[localIdx]) {
+				stored[localIdx] = true;
 			} else {
-				Vars.put(localIdx, false);
-				doDynamicFolding(cgen, cpgen, instList);
+				Vars.setOverdefined(localIdx);
+				doDynamicFolding(cgen, cpgen, instList, null);
 				break;
 				//do dynamic only when dynamic variable is found
 			}
@@ -477,10 +670,8 @@ public class ConstantFolder
 
 	private void doConstantVariableFolding(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList){
 
-		HashMap<Integer,Number> literalValues = new HashMap<>();
-		HashMap<Integer, Boolean> constantVars = new HashMap<>();
-
-		constantVars = findConstantVar(cgen, cpgen, instList);
+		LocalLattice literalValues = findConstantVar(cgen, cpgen, instList);
+		ConstantStack pushed = new ConstantStack();
 
 		boolean folding = true;
 		while (folding){
@@ -492,30 +683,20 @@ public class ConstantFolder
 
 			for (Iterator it = finder.search(pattern); it.hasNext();){
 				InstructionHandle[] set = (InstructionHandle[]) it.next();
-				PushInstruction push = (PushInstruction) set[0].getInstruction();
 				StoreInstruction store = (StoreInstruction) set[1].getInstruction();
-				Number val = null;
 
 				//skip if store is not constant
-				if (!constantVars.containsKey(store.getIndex()) || !constantVars.get(store.getIndex())) {
+				if (literalValues.isOverdefined(store.getIndex())) {
 					continue;
 				}
 
-				if(push instanceof LDC){
-					val = (Number) ((LDC) push).getValue(cpgen);
-				}
-				else if (push instanceof LDC2_W){
-					val = ((LDC2_W) push).getValue(cpgen);
-				}
-				else if (push instanceof ConstantPushInstruction){
-					val = ((ConstantPushInstruction) push).getValue();
-				}
-
-				if (val == null){
+				pushed.clear();
+				if (!pushed.push(set[0].getInstruction(), cpgen)){
 					System.err.println("FATAL: Could not obtain literal value for unknown type");
+					continue;
 				}
 
-				literalValues.put(store.getIndex(), val);
+				literalValues.store(store.getIndex(), pushed);
 			}
 
 			//finder = new InstructionFinder(instList);
@@ -527,30 +708,9 @@ public class ConstantFolder
 				// set[0] expected to be LoadInstruction, as specified in the pattern (it's the superclass of the specified pattern).
 				LoadInstruction load = (LoadInstruction) set[0].getInstruction();
 
-				// Check if the index exists in the hashmap.
-				if (literalValues.containsKey(load.getIndex())) {
-					Instruction added = null;
-
-					Number val = literalValues.get(load.getIndex());
-
-					if (load.getType(cpgen) == Type.FLOAT) {
-						added = new LDC(cpgen.addFloat(val.floatValue()));
-					} else if (load.getType(cpgen) == Type.DOUBLE) {
-						added = new LDC2_W(cpgen.addDouble(val.doubleValue()));
-					} else if (load.getType(cpgen) == Type.LONG) {
-						added = new LDC2_W(cpgen.addLong(val.longValue()));
-					} else if (load.getType(cpgen) == Type.INT) {
-						if (false && Math.abs(val.intValue()) < Byte.MAX_VALUE) {
-							added = new BIPUSH(val.byteValue());
-						} else if (false && Math.abs(val.intValue()) < Short.MAX_VALUE) {
-							added = new SIPUSH(val.shortValue());
-						} else {
-							added = new LDC(cpgen.addInteger(val.intValue()));
-						}
-					}
-
-					// Assert that there's an instruction to add.
-					assert added != null;
+				// Check if the slot holds a known constant.
+				if (literalValues.isConstant(load.getIndex())) {
+					Instruction added = literalValues.loadInstruction(load.getIndex(), cpgen);
 
 					InstructionHandle instructionAddedHandle = instList.insert(set[0], added);
 
@@ -570,314 +730,302 @@ public class ConstantFolder
 		}
 	}
 
-	private HashMap<Integer, Boolean> findLoadStore(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList){
-		HashMap<Integer, Boolean> inLoop = new HashMap<>();
-		for (InstructionHandle handle:instList.getInstructionHandles()){
-			Instruction inst = handle.getInstruction();
-			if (inst instanceof GOTO){
-				if (((GotoInstruction)inst).getTarget().getPosition() < handle.getPosition()){
-					InstructionHandle inLoopLoad = ((GotoInstruction)inst).getTarget();
-					inLoop.put(((LoadInstruction)inLoopLoad.getInstruction()).getIndex(), true);
-					//find all load and store instructions that are used for loops, do not remove them.
+	private boolean[] findLoadStore(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList, int slots){
+		//Slots written inside a loop hold another value on every iteration, so none of their loads and stores
+		//may be folded. The loops are the natural loops of the control flow graph, a backward GOTO alone
+		//says nothing about which slots change.
+		boolean[] inLoop = new boolean[slots];
+		ControlFlowGraph cfg = new ControlFlowGraph(instList);
+		for (ControlFlowGraph.Loop loop : cfg.getLoops()){
+			for (ControlFlowGraph.BasicBlock block : loop.getBlocks()){
+				for (InstructionHandle handle : block.getHandles()){
+					Instruction inst = handle.getInstruction();
+					if (inst instanceof StoreInstruction || inst instanceof IINC){
+						inLoop[((LocalVariableInstruction)inst).getIndex()] = true;
+						//find all load and store instructions that are used for loops, do not remove them.
+					}
 				}
 			}
 		}
 		return inLoop;
 	}
 
-	private void doDynamicFolding(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList){
-		HashMap<Integer, Boolean> inLoopLoadsAndStores = new HashMap<>();
-		HashMap<Integer, Number> variables = new HashMap<>();
-
-		inLoopLoadsAndStores = findLoadStore(cgen,cpgen,instList);
-
-		Stack<Number> constantStack = new Stack<>();
-		Stack<InstructionHandle> handlesToRemove = new Stack<>();
-		boolean optimisationEnds = false;
+	private static boolean[] findAmbiguousSlots(MethodGen mg){
+		//What doDynamicFolding leaves alone when constant propagation did not run: the parameters, which hold a
+		//value on entry, and the slots written in more than one place. A load of any other slot has its one store
+		//on every path to it, the verifier makes sure the slot was written, so the walk can carry that store.
+		int size = 0;
+		for (Type type : mg.getArgumentTypes()) {
+			size += type.getSize();
+		}
+		int parameters = mg.isStatic() ? size : size + 1;
+		int[] writes = new int[Math.max(parameters, LocalLattice.forMethod(mg.getInstructionList()).size())];
+		for (InstructionHandle handle = mg.getInstructionList().getStart(); handle != null; handle = handle.getNext()) {
+			Instruction inst = handle.getInstruction();
+			if (inst instanceof StoreInstruction || inst instanceof IINC) {
+				int slot = ((LocalVariableInstruction) inst).getIndex();
+				writes[slot]++;
+				if (inst instanceof StoreInstruction && ((StoreInstruction) inst).getType(null).getSize() == 2) {
+					writes[slot + 1]++;
+				}
+			}
+		}
+		boolean[] ambiguous = new boolean[writes.length];
+		for (int slot = 0; slot < writes.length; slot++) {
+			ambiguous[slot] = slot < parameters || writes[slot] > 1;
+		}
+		return ambiguous;
+	}
 
-		while(!optimisationEnds){
+	private void doDynamicFolding(ClassGen cgen, ConstantPoolGen cpgen, InstructionList instList, boolean[] unresolved){
+		//unresolved are the slots constant propagation left a load of, or without it the slots whose loads may
+		//see more than one store. They are not touched either. The walk below follows the instructions in list
+		//order and would carry a store into code behind a join, the other slots have no loads left that could
+		//see another store and only lose their constant stores.
+		LocalLattice variables = LocalLattice.forMethod(instList);
+		ConstantStack pushed = new ConstantStack();
+		//holds the value of the store being looked at on its way into variables
+		boolean[] inLoopLoadsAndStores = findLoadStore(cgen, cpgen, instList, variables.size());
+		for (int slot = 0; unresolved != null && slot < inLoopLoadsAndStores.length; slot++){
+			inLoopLoadsAndStores[slot] |= slot < unresolved.length && unresolved[slot];
+		}
 
-			optimisationEnds = true;
-			//repeat until all the store and load instructions are removed
+		//Visit the handles once, in order. A store whose value is not a constant yet only folds the instructions
+		//since the previous store and is visited a second time, so every instruction is folded at most once and
+		//the pass stays linear in the method length instead of restarting from the top.
+		ArrayDeque<InstructionHandle> worklist = new ArrayDeque<>(Arrays.asList(instList.getInstructionHandles()));
+		HashSet<InstructionHandle> retried = new HashSet<>();
+		InstructionHandle foldFrom = null;
+		//first instruction after the previous store, the start of the region the next store may fold
 
-			for (InstructionHandle handle:instList.getInstructionHandles()){
-				Instruction inst = handle.getInstruction();
-				InstructionHandle next = handle.getNext();
-				boolean nextIsStore = false;
-				boolean nextInLoop = false;
+		while (!worklist.isEmpty()){
+			InstructionHandle handle = worklist.poll();
+			Instruction inst = handle.getInstruction();
+			if (inst == null){
+				continue;
+				//deleted while folding an earlier region
+			}
+			if (foldFrom == null){
+				foldFrom = handle;
+			}
 
-				if (next != null){
-					Instruction nextInst = next.getInstruction();
-					if (nextInst instanceof StoreInstruction){
-						nextIsStore = true;
-						if (inLoopLoadsAndStores.containsKey(((StoreInstruction)nextInst).getIndex())){
-							nextInLoop = true;
-						}
-						//only consider those LDCs followed with a store instruction
-					}
+			if (inst instanceof StoreInstruction && !(inst instanceof ASTORE) && !inLoopLoadsAndStores[((StoreInstruction)inst).getIndex()]){
+				int key = ((StoreInstruction)inst).getIndex();
+				InstructionHandle push = handle.getPrev();
+				if (handle.hasTargeters()){
+					foldFrom = null;
+					variables.setOverdefined(key);
+					continue;
+					//a jump to the store brings another value than push, e.g. the second arm of c ? 1 : 2
 				}
+				pushed.clear();
+				boolean known = push != null && pushed.push(push.getInstruction(), cpgen);
 
-				if (inst instanceof LDC && nextIsStore && (!nextInLoop)){
-					Number constant = (Number)((LDC)inst).getValue(cpgen);
-					constantStack.push(constant);
-					//push the constant to the stack, pop one when a store is met.
-					handlesToRemove.push(handle);
-				} else if (inst instanceof LDC2_W && nextIsStore && (!nextInLoop)){
-					Number constant = (Number)((LDC2_W)inst).getValue(cpgen);
-					constantStack.push(constant);
-					handlesToRemove.push(handle);
-				} else if (inst instanceof ConstantPushInstruction && nextIsStore && (!nextInLoop)){
-					Number constant = ((ConstantPushInstruction)inst).getValue();
-					constantStack.push(constant);
-					handlesToRemove.push(handle);
+				if (!known && retried.add(handle)){
+					//Not yet able to get this store value, fold the instructions feeding it and look again
+					doSimpleFolding(cgen, cpgen, instList, foldFrom, handle);
+					worklist.push(handle);
+					continue;
 				}
+				foldFrom = null;
 
-				if (inst instanceof StoreInstruction && !(inLoopLoadsAndStores.containsKey(((StoreInstruction)inst).getIndex()))){
-
-					if (constantStack.size() == 0){
-						optimisationEnds = false;
-						//Not yet able to get this store value, skip
-						doSimpleFolding(cgen, cpgen, instList, handle);
-						//fold the previous instructions
-						break;
-						//end this loop and start a new one
-					}
-
-					Number value = constantStack.pop();
-					int key = ((StoreInstruction)inst).getIndex();
-
-					if (variables.containsKey(key)){
-						variables.replace(key, value);
-						//replace the previous value
-					} else {
-						variables.put(key, value);
-					}
-					safelyDeleteInst(handlesToRemove.pop(), instList);
-					//remove the previous LDC used to store
+				if (!known){
+					variables.setOverdefined(key);
+					//not a constant, the loads that follow must keep reading the variable
+					continue;
+				}
+				variables.store(key, pushed);
+				moveTargeters(push, handle.getNext());
+				moveTargeters(handle, handle.getNext());
+				//a jump to the statement now lands on the one after it
+				safelyDeleteInst(push, instList);
+				//remove the previous LDC used to store
+				safelyDeleteInst(handle, instList);
+				//remove the unnecessary store instruction
+			} else if (inst instanceof IINC && !inLoopLoadsAndStores[((IINC)inst).getIndex()]){
+				int key = ((IINC)inst).getIndex();
+				if (variables.isConstant(key) && variables.getType(key) == ConstantStack.INT){
+					variables.setInt(key, variables.getInt(key) + ((IINC)inst).getIncrement());
+					moveTargeters(handle, handle.getNext());
 					safelyDeleteInst(handle, instList);
-					//remove the unnecessary store instruction
+					//the store it updates is gone, carry the increment in the known value instead
+				} else {
+					variables.setOverdefined(key);
 				}
+			} else if (inst instanceof LoadInstruction && !(inst instanceof ALOAD) && !inLoopLoadsAndStores[((LoadInstruction)inst).getIndex()]){
 
-				if (inst instanceof LoadInstruction && !(inst instanceof ALOAD) && !(inLoopLoadsAndStores.containsKey(((LoadInstruction)inst).getIndex()))){
-
-					int key = ((LoadInstruction)inst).getIndex();
-					Number value = variables.get(key);
-
-					if (value instanceof Integer){
-						instList.insert(handle, new LDC(cpgen.addInteger((Integer)value)));
-					} else if (value instanceof Float){
-						instList.insert(handle, new LDC(cpgen.addFloat((Float)value)));
-					} else if (value instanceof Double){
-						instList.insert(handle, new LDC2_W(cpgen.addDouble((Double)value)));
-					} else if (value instanceof Long){
-						instList.insert(handle, new LDC2_W(cpgen.addLong((Long)value)));
-					}
-					//replace the load instructions with LDCs
-					safelyDeleteInst(handle, instList);
+				int key = ((LoadInstruction)inst).getIndex();
+				if (!variables.isConstant(key)){
+					continue;
+					//unknown value, e.g. a parameter
 				}
+				handle.setInstruction(variables.loadInstruction(key, cpgen));
+				//replace the load instructions with LDCs, in place so jumps to it stay
 			}
 		}
 		doSimpleFolding(cgen, cpgen, instList);
-		removeunnecessaryLDCs(instList);
 		//After all store and load are removed, generally do a simple folding.
-		redirectTargetsInLoops(instList);
-		//Sometimes removing instructions could cause a ifInstruction of a loop to lose its target, fix it.
 	}
 
-	private void removeunnecessaryLDCs(InstructionList instList){
-		for (InstructionHandle handle:instList.getInstructionHandles()){
-			InstructionHandle next = handle.getNext();
+	public void write(String optimisedFilePath)
+	{
+		try (FileOutputStream out = new FileOutputStream(new File(optimisedFilePath))) {
+			this.write(out);
+		} catch (FileNotFoundException e) {
+			// Auto-generated catch block
+			e.printStackTrace();
+		} catch (IOException e) {
+			// Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
+	public void write(OutputStream out) throws IOException
+	{
+		//optimize and dump the class to the given stream, the stream is left open for the caller
+		this.optimize();
+		this.optimized.dump(out);
+	}
 
-			if (next != null){
-				if ((handle.getInstruction() instanceof LDC || handle.getInstruction() instanceof LDC2_W) && (next.getInstruction() instanceof LDC || next.getInstruction() instanceof LDC2_W)){
-					if (next.getNext() != null && next.getNext().getInstruction() instanceof IfInstruction){
-						continue;
-					}
-					safelyDeleteInst(handle, instList);
-				}
+	public byte[] toByteArray()
+	{
+		//optimize and return the class file in memory, nothing touches the filesystem
+		this.optimize();
+		return this.optimized.getBytes();
+	}
+
+	public int write(ByteBuffer out) throws IOException
+	{
+		//optimize and dump the class straight into the caller's buffer, returns the number of bytes written.
+		//A BufferOverflowException is thrown if the buffer is too small.
+		int start = out.position();
+		this.optimize();
+		this.optimized.dump(new OutputStream() {
+			@Override
+			public void write(int b) {
+				out.put((byte) b);
 			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				out.put(b, off, len);
+			}
+		});
+		return out.position() - start;
+	}
+
+	public static byte[] optimizeBytes(byte[] classBytes)
+	{
+		ConstantFolder folder = new ConstantFolder(classBytes);
+		folder.setVerbose(false);
+		return folder.toByteArray();
+	}
+
+	public static byte[] optimizeBytes(byte[] classBytes, ClassCache cache)
+	{
+		//the lookup happens before parsing, a hit costs one digest of the input
+		String key = OptimizedClassCache.keyFor(classBytes, defaultConfigKey());
+		byte[] optimized = cache.get(key);
+		if (optimized == null) {
+			optimized = optimizeBytes(classBytes);
+			cache.put(key, optimized);
 		}
+		return optimized;
 	}
 
-	private void doArithOp(Instruction inst){
-
-		if (constantStack.size() < 2){ return; }
-		Number first = constantStack.pop();
-		Number second = constantStack.pop();
-		Number result = null;
-
-		//Do calculation.
-		if (inst instanceof IADD) {
-			result = second.intValue() + first.intValue();
-			constantStack.push(result);
-		} else if (inst instanceof LADD) {
-			result = second.longValue() + first.longValue();
-			constantStack.push(result);
-		} else if (inst instanceof FADD) {
-			result = second.floatValue() + first.floatValue();
-			constantStack.push(result);
-		} else if (inst instanceof DADD) {
-			result = second.doubleValue() + first.doubleValue();
-			constantStack.push(result);
-		} else if (inst instanceof IMUL) {
-			result = second.intValue() * first.intValue();
-			constantStack.push(result);
-		} else if (inst instanceof LMUL) {
-			result = second.longValue() * first.longValue();
-			constantStack.push(result);
-		} else if (inst instanceof FMUL) {
-			result = second.floatValue() * first.floatValue();
-			constantStack.push(result);
-		} else if (inst instanceof DMUL) {
-			result = second.doubleValue() * first.doubleValue();
-			constantStack.push(result);
-		} else if (inst instanceof ISUB) {
-			result = second.intValue() - first.intValue();
-			constantStack.push(result);
-		} else if (inst instanceof LSUB) {
-			result = second.longValue() - first.longValue();
-			constantStack.push(result);
-		} else if (inst instanceof FSUB) {
-			result = second.floatValue() - first.floatValue();
-			constantStack.push(result);
-		} else if (inst instanceof DSUB) {
-			result = second.doubleValue() - first.doubleValue();
-			constantStack.push(result);
-		} else if (inst instanceof IDIV) {
-			result = second.intValue() / first.intValue();
-			constantStack.push(result);
-		} else if (inst instanceof LDIV) {
-			result = second.longValue() / first.longValue();
-			constantStack.push(result);
-		} else if (inst instanceof FDIV) {
-			result = second.floatValue() / first.floatValue();
-			constantStack.push(result);
-		} else if (inst instanceof DDIV) {
-			result = second.doubleValue() / first.doubleValue();
-			constantStack.push(result);
-		}
-	}
-
-	private boolean doLogicOp(InstructionHandle handle) {
-		//
-		Instruction inst = handle.getInstruction();
-
-		if (inst instanceof IFLE) {
-			Number value1 = constantStack.pop();
-			return (Integer) value1 <= 0;
-			//IFLE only needs one pop
-		}
-
-		Number first = constantStack.pop();
-		Number second = constantStack.pop();
-		boolean result = false;
-
-		//get the result of the comparison
-		if (inst instanceof IF_ICMPEQ) {
-			if (first.equals(second)) {
-				result = true;
-			}
-		} else if (inst instanceof IF_ICMPGE) {
-			if ((Integer) first >= (Integer) second) {
-				result = true;
-			}
-		} else if (inst instanceof IF_ICMPGT) {
-			if ((Integer) first > (Integer) second) {
-				result = true;
-			}
-		} else if (inst instanceof IF_ICMPLE) {
-			if ((Integer) first <= (Integer) second) {
-				result = true;
-			}
-		} else if (inst instanceof IF_ICMPLT) {
-			if ((Integer) first < (Integer) second) {
-				result = true;
-			}
-		} else if (inst instanceof IF_ICMPNE) {
-			if (!first.equals(second)) {
-				result = true;
-			}
-		}
-		return result;
-	}
-
-	public void redirectTargetsInLoops(InstructionList instList){
-		int loopCount = 0;
-		for (InstructionHandle handle:instList.getInstructionHandles()){
-			Instruction inst = handle.getInstruction();
-			if (inst instanceof GOTO){
-				loopCount++;
-				//record which goto it is, and find the corresponding if.
-				if (((GotoInstruction)inst).getTarget().getPosition() < handle.getPosition()){
-					int thisCount = loopCount;
-					InstructionHandle ifHandle = null;
-					InstructionHandle prev = handle.getPrev();
-					while (prev != null && thisCount > 0){
-						if (prev.getInstruction() instanceof IfInstruction){
-							ifHandle = prev;
-							thisCount--;
-						}
-						prev = prev.getPrev();
-					}
-					if (ifHandle != null){
-						Instruction ifInst = ifHandle.getInstruction();
-						//replace the old ifInstruction with a new one targeting the instruction next to the goto
-						if (ifInst instanceof IF_ICMPEQ){
-							instList.insert(ifHandle, new IF_ICMPEQ(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IF_ICMPGE){
-							instList.insert(ifHandle, new IF_ICMPGE(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IF_ICMPGT){
-							instList.insert(ifHandle, new IF_ICMPGT(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IF_ICMPLE){
-							instList.insert(ifHandle, new IF_ICMPLE(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IF_ICMPLT){
-							instList.insert(ifHandle, new IF_ICMPLT(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IF_ICMPNE){
-							instList.insert(ifHandle, new IF_ICMPNE(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IFEQ){
-							instList.insert(ifHandle, new IFEQ(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IFGE){
-							instList.insert(ifHandle, new IFGE(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IFGT){
-							instList.insert(ifHandle, new IFGT(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IFLE){
-							instList.insert(ifHandle, new IFLE(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IFLT){
-							instList.insert(ifHandle, new IFLT(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						} else if(ifInst instanceof IFNE){
-							instList.insert(ifHandle, new IFNE(handle.getNext()));
-							safelyDeleteInst(ifHandle, instList);
-						}
-					}
+	public boolean canOptimize()
+	{
+		//The output is a version 50 class whose methods have no exception handlers, see optimize and foldMethod.
+		//Most newer classes load the same way as version 50, the ones that would not are loaded as they are:
+		//  invokedynamic and its constants, method handles and types, which version 50 does not allow
+		//  interface methods with a body and invokestatic or invokespecial of one, both from version 52
+		//  nestmates, records, sealed classes and modules, from version 53 on, whose attributes 50 ignores
+		//  a try/catch, which would be dropped
+		if (original == null) {
+			return false;
+		}
+		for (Constant constant : original.getConstantPool().getConstantPool()) {
+			if (constant == null) {
+				continue;
+				//the unused slot after a long or double
+			}
+			byte tag = constant.getTag();
+			if (tag == Const.CONSTANT_MethodHandle || tag == Const.CONSTANT_MethodType || tag == Const.CONSTANT_Dynamic
+					|| tag == Const.CONSTANT_InvokeDynamic || tag == Const.CONSTANT_Module || tag == Const.CONSTANT_Package) {
+				return false;
+			}
+		}
+		if (original.getMajor() > 52) {
+			for (Attribute attribute : original.getAttributes()) {
+				if (NEWER_CLASS_ATTRIBUTES.contains(attribute.getName())) {
+					return false;
 				}
 			}
 		}
+		ConstantPool pool = original.getConstantPool();
+		for (Method m : original.getMethods()) {
+			if (original.isInterface() && !m.isAbstract() && !m.getName().equals(Const.STATIC_INITIALIZER_NAME)) {
+				return false;
+			}
+			Code code = m.getCode();
+			if (code == null) {
+				continue;
+			}
+			if (code.getExceptionTable().length > 0) {
+				return false;
+			}
+			for (Instruction inst : new InstructionList(code.getCode()).getInstructions()) {
+				if ((inst instanceof INVOKESTATIC || inst instanceof INVOKESPECIAL)
+						&& pool.getConstant(((InvokeInstruction) inst).getIndex()).getTag() == Const.CONSTANT_InterfaceMethodref) {
+					return false;
+				}
+			}
+		}
+		return true;
 	}
 
-	public void write(String optimisedFilePath)
+	public static boolean canOptimize(byte[] classBytes)
 	{
-		this.optimize();
-
+		//whether optimizeBytes gives a class that loads and behaves like this one, false if it does not parse
 		try {
-			FileOutputStream out = new FileOutputStream(new File(optimisedFilePath));
-			this.optimized.dump(out);
-		} catch (FileNotFoundException e) {
-			// Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// Auto-generated catch block
-			e.printStackTrace();
+			ConstantFolder folder = new ConstantFolder(classBytes);
+			return folder.canOptimize();
+		} catch (RuntimeException e) {
+			return false;
 		}
 	}
-}
\ No newline at end of file
+
+	public String configKey()
+	{
+		//every setting that changes the optimized bytes, used to key cached results
+		return passConfig() + ";parallelMethods=" + parallelMethods;
+	}
+
+	static String defaultConfigKey()
+	{
+		//configuration of a folder with default settings, without having to parse a class first
+		return new ConstantFolder((JavaClass) null).configKey();
+	}
+
+	String passConfig()
+	{
+		//the settings that change how a single method is folded
+		String config = "version=" + VERSION;
+		if (unrollFactor != LoopUnrolling.DEFAULT_FACTOR) {
+			config += ";unroll=" + unrollFactor;
+		}
+		if (!disabledPasses.isEmpty()) {
+			ArrayList<String> disabled = new ArrayList<>(disabledPasses);
+			disabled.sort(null);
+			config += ";disabled=" + String.join(",", disabled);
+		}
+		return config;
+	}
+
+	private static byte[] toArray(ByteBuffer buffer)
+	{
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
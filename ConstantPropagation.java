@@ -0,0 +1,265 @@
+package comp0012.main;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+
+
+//Conditional constant propagation over the control flow graph of a method, after Wegman and Zadeck.
+//Every block gets the locals (a LocalLattice) and the operand stack (a ConstantStack with unknown entries)
+//it starts with. Blocks are only visited once an executable edge reaches them, and a branch whose operands
+//are constants only makes its taken edge executable, so code behind a condition that is always false never
+//pollutes the join after it. Works on blocks instead of SSA form, which the bytecode does not have.
+//
+//When the states are stable, loads of int, long, float and double locals that hold the same constant on
+//every path are replaced by an LDC of it, in place, so no branch loses its target. Blocks that never became
+//executable are reported for the passes that remove code.
+public class ConstantPropagation
+{
+	MethodGen mg;
+	ConstantPoolGen cpgen;
+	ControlFlowGraph cfg;
+
+	LocalLattice[] entryLocals;
+	ConstantStack[] entryStacks;
+	//state at the start of each block, null until an executable edge reaches it
+	ArrayDeque<ControlFlowGraph.BasicBlock> worklist = new ArrayDeque<>();
+	boolean[] queued;
+
+	boolean[] unresolved;
+	//slots read by an executable load that could not be replaced
+	int rewrittenLoads = 0;
+
+	public ConstantPropagation(MethodGen mg, ConstantPoolGen cpgen)
+	{
+		this.mg = mg;
+		this.cpgen = cpgen;
+	}
+
+	public void run()
+	{
+		InstructionList instList = mg.getInstructionList();
+		cfg = new ControlFlowGraph(mg);
+		int blocks = cfg.getBlocks().size();
+		entryLocals = new LocalLattice[blocks];
+		entryStacks = new ConstantStack[blocks];
+		queued = new boolean[blocks];
+		int argumentSlots = mg.isStatic() ? 0 : 1;
+		for (Type type : mg.getArgumentTypes()){
+			argumentSlots += type.getSize();
+		}
+		int slots = Math.max(LocalLattice.slotsUsedBy(instList), argumentSlots);
+		unresolved = new boolean[slots];
+		if (blocks == 0){
+			return;
+		}
+
+		LocalLattice start = new LocalLattice(slots);
+		for (int slot = 0; slot < argumentSlots; slot++){
+			start.setOverdefined(slot);
+			//this and the arguments, anything can be passed in
+		}
+		flow(cfg.getEntry(), start, new ConstantStack());
+
+		while (!worklist.isEmpty()){
+			ControlFlowGraph.BasicBlock block = worklist.poll();
+			queued[block.getIndex()] = false;
+			visit(block, false);
+		}
+		for (ControlFlowGraph.BasicBlock block : cfg.getBlocks()){
+			if (isExecutable(block)){
+				visit(block, true);
+			}
+		}
+	}
+
+	public ControlFlowGraph getGraph()
+	{
+		return cfg;
+	}
+
+	public boolean isExecutable(ControlFlowGraph.BasicBlock block)
+	{
+		return entryLocals[block.getIndex()] != null;
+	}
+
+	public List<ControlFlowGraph.BasicBlock> getUnreachableBlocks()
+	{
+		//blocks no executable edge reaches, in code order
+		ArrayList<ControlFlowGraph.BasicBlock> unreachable = new ArrayList<>();
+		for (ControlFlowGraph.BasicBlock block : cfg.getBlocks()){
+			if (!isExecutable(block)){
+				unreachable.add(block);
+			}
+		}
+		return unreachable;
+	}
+
+	public boolean[] getUnresolvedSlots()
+	{
+		//slots that still have a load reading them after the rewrite
+		return unresolved;
+	}
+
+	public int getRewrittenLoads()
+	{
+		return rewrittenLoads;
+	}
+
+	private void visit(ControlFlowGraph.BasicBlock block, boolean rewrite)
+	{
+		//run the block on a copy of its entry state and pass the result along the executable edges,
+		//the second time round the constant loads are rewritten
+		LocalLattice locals = entryLocals[block.getIndex()].copy();
+		ConstantStack stack = entryStacks[block.getIndex()].copy();
+		for (InstructionHandle handle : block.getHandles()){
+			if (handle == block.getEnd()){
+				break;
+			}
+			transfer(handle, locals, stack, rewrite);
+		}
+
+		InstructionHandle last = block.getEnd();
+		Instruction inst = last.getInstruction();
+		if (!block.getExceptionSuccessors().isEmpty() && !rewrite){
+			LocalLattice caught = locals.copy();
+			caught.setAllOverdefined();
+			//the exception may come from any instruction of the block, assume nothing about the locals
+			ConstantStack exception = new ConstantStack();
+			exception.pushUnknown(1);
+			for (ControlFlowGraph.BasicBlock handler : block.getExceptionSuccessors()){
+				flow(handler, caught, exception);
+			}
+		}
+
+		if (inst instanceof IfInstruction){
+			int operands = Evaluator.branchArity(inst.getOpcode());
+			if (operands > 0 && stack.isKnown(operands)){
+				boolean taken = Evaluator.branchTaken(inst.getOpcode(), stack);
+				InstructionHandle next = taken ? ((IfInstruction) inst).getTarget() : last.getNext();
+				if (!rewrite){
+					flow(cfg.blockOf(next), locals, stack);
+				}
+				return;
+			}
+		} else if (inst instanceof Select && stack.isKnown(1)){
+			int key = stack.popInt();
+			Select select = (Select) inst;
+			InstructionHandle next = select.getTarget();
+			int[] matches = select.getMatchs();
+			for (int i = 0; i < matches.length; i++){
+				if (matches[i] == key){
+					next = select.getTargets()[i];
+					break;
+				}
+			}
+			if (!rewrite){
+				flow(cfg.blockOf(next), locals, stack);
+			}
+			return;
+		}
+		transfer(last, locals, stack, rewrite);
+		if (!rewrite){
+			for (ControlFlowGraph.BasicBlock successor : block.getSuccessors()){
+				flow(successor, locals, stack);
+			}
+		}
+	}
+
+	private void flow(ControlFlowGraph.BasicBlock to, LocalLattice locals, ConstantStack stack)
+	{
+		int index = to.getIndex();
+		boolean changed;
+		if (entryLocals[index] == null){
+			entryLocals[index] = locals.copy();
+			entryStacks[index] = stack.copy();
+			changed = true;
+		} else {
+			changed = entryLocals[index].merge(locals);
+			changed |= entryStacks[index].merge(stack);
+		}
+		if (changed && !queued[index]){
+			queued[index] = true;
+			worklist.add(to);
+		}
+	}
+
+	private void transfer(InstructionHandle handle, LocalLattice locals, ConstantStack stack, boolean rewrite)
+	{
+		//the effect of one instruction on the abstract state
+		Instruction inst = handle.getInstruction();
+		short opcode = inst.getOpcode();
+
+		if (inst instanceof ConstantPushInstruction || inst instanceof LDC || inst instanceof LDC2_W){
+			if (!stack.push(inst, cpgen)){
+				stack.pushUnknown(1);
+				//a String, Class or method handle
+			}
+		} else if (inst instanceof LoadInstruction){
+			int slot = ((LoadInstruction) inst).getIndex();
+			byte tag = tagOf(((LoadInstruction) inst).getCanonicalTag());
+			if (tag >= 0 && locals.isConstant(slot) && locals.getType(slot) == tag){
+				if (rewrite){
+					handle.setInstruction(locals.loadInstruction(slot, cpgen));
+					rewrittenLoads++;
+				}
+				locals.load(slot, stack);
+			} else {
+				if (rewrite){
+					unresolved[slot] = true;
+				}
+				stack.pushUnknown(inst.produceStack(cpgen));
+			}
+		} else if (inst instanceof StoreInstruction){
+			int slot = ((StoreInstruction) inst).getIndex();
+			if (inst instanceof ASTORE){
+				stack.popWords(1);
+				locals.setOverdefined(slot);
+			} else {
+				locals.store(slot, stack);
+			}
+		} else if (inst instanceof IINC){
+			int slot = ((IINC) inst).getIndex();
+			if (locals.isConstant(slot) && locals.getType(slot) == ConstantStack.INT){
+				locals.setInt(slot, locals.getInt(slot) + ((IINC) inst).getIncrement());
+			} else {
+				locals.setOverdefined(slot);
+			}
+		} else if (Evaluator.arity(opcode) >= 0 && Evaluator.evaluate(opcode, stack)){
+			//folded to a constant
+		} else if (opcode == Const.POP || opcode == Const.POP2){
+			stack.popWords(opcode == Const.POP ? 1 : 2);
+		} else if (opcode == Const.DUP){
+			stack.dup(1, 0);
+		} else if (opcode == Const.DUP_X1){
+			stack.dup(1, 1);
+		} else if (opcode == Const.DUP_X2){
+			stack.dup(1, 2);
+		} else if (opcode == Const.DUP2){
+			stack.dup(2, 0);
+		} else if (opcode == Const.DUP2_X1){
+			stack.dup(2, 1);
+		} else if (opcode == Const.DUP2_X2){
+			stack.dup(2, 2);
+		} else if (opcode == Const.SWAP){
+			stack.swap();
+		} else {
+			stack.popWords(inst.consumeStack(cpgen));
+			stack.pushUnknown(inst.produceStack(cpgen));
+			//anything else produces a value that is not a constant, if any
+		}
+	}
+
+	static byte tagOf(short loadOpcode)
+	{
+		switch (loadOpcode){
+			case Const.ILOAD: return ConstantStack.INT;
+			case Const.LLOAD: return ConstantStack.LONG;
+			case Const.FLOAD: return ConstantStack.FLOAT;
+			case Const.DLOAD: return ConstantStack.DOUBLE;
+			default: return -1;
+		}
+	}
+}
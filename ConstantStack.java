@@ -0,0 +1,386 @@
+package comp0012.main;
+import java.util.EmptyStackException;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantDouble;
+import org.apache.bcel.classfile.ConstantFloat;
+import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantLong;
+import org.apache.bcel.generic.*;
+
+
+//Operand stack of the folder, holding the constants pushed so far.
+//Values are kept in primitive slots next to a type tag, so pushing and popping never boxes. Ints and longs
+//share the long slots, floats and doubles the double slots (widening a float to a double is exact).
+//Every entry is one value, but longs and doubles count as two words like on the JVM operand stack.
+//The dataflow passes also push UNKNOWN entries for values that are not constants (references, results of
+//calls), the folder itself only ever pushes constants.
+public class ConstantStack
+{
+	public static final byte INT = 0;
+	public static final byte LONG = 1;
+	public static final byte FLOAT = 2;
+	public static final byte DOUBLE = 3;
+	public static final byte UNKNOWN = 4;
+	public static final byte UNKNOWN_WIDE = 5;
+	//not a constant, one and two words
+
+	byte[] tags;
+	long[] longs;
+	double[] doubles;
+	int size = 0;
+	int words = 0;
+
+	public ConstantStack()
+	{
+		this(16);
+	}
+
+	public ConstantStack(int capacity)
+	{
+		tags = new byte[capacity];
+		longs = new long[capacity];
+		doubles = new double[capacity];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int words()
+	{
+		//size of the stack in JVM words, longs and doubles are category 2
+		return words;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public void clear()
+	{
+		size = 0;
+		words = 0;
+	}
+
+	public void pushInt(int value)
+	{
+		push(INT);
+		longs[size - 1] = value;
+	}
+
+	public void pushLong(long value)
+	{
+		push(LONG);
+		longs[size - 1] = value;
+	}
+
+	public void pushFloat(float value)
+	{
+		push(FLOAT);
+		doubles[size - 1] = value;
+	}
+
+	public void pushDouble(double value)
+	{
+		push(DOUBLE);
+		doubles[size - 1] = value;
+	}
+
+	public void pushUnknown(int words)
+	{
+		//a value that is not a constant, taking one or two words, nothing is pushed for zero
+		if (words == 1){
+			push(UNKNOWN);
+		} else if (words == 2){
+			push(UNKNOWN_WIDE);
+		}
+	}
+
+	public boolean push(Instruction inst, ConstantPoolGen cpgen)
+	{
+		//push the numeric constant loaded by inst, false if inst does not load one (e.g. an LDC of a String)
+		short opcode = inst.getOpcode();
+		if (opcode >= Const.ICONST_M1 && opcode <= Const.ICONST_5){
+			pushInt(opcode - Const.ICONST_0);
+		} else if (opcode == Const.LCONST_0 || opcode == Const.LCONST_1){
+			pushLong(opcode - Const.LCONST_0);
+		} else if (opcode >= Const.FCONST_0 && opcode <= Const.FCONST_2){
+			pushFloat(opcode - Const.FCONST_0);
+		} else if (opcode == Const.DCONST_0 || opcode == Const.DCONST_1){
+			pushDouble(opcode - Const.DCONST_0);
+		} else if (opcode == Const.BIPUSH || opcode == Const.SIPUSH){
+			pushInt(((ConstantPushInstruction) inst).getValue().intValue());
+		} else if (inst instanceof LDC || inst instanceof LDC2_W){
+			//read the pool entry directly, getValue would box it
+			Constant constant = cpgen.getConstant(((CPInstruction) inst).getIndex());
+			if (constant instanceof ConstantInteger){
+				pushInt(((ConstantInteger) constant).getBytes());
+			} else if (constant instanceof ConstantFloat){
+				pushFloat(((ConstantFloat) constant).getBytes());
+			} else if (constant instanceof ConstantLong){
+				pushLong(((ConstantLong) constant).getBytes());
+			} else if (constant instanceof ConstantDouble){
+				pushDouble(((ConstantDouble) constant).getBytes());
+			} else {
+				return false;
+			}
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	public byte peekType()
+	{
+		checkNotEmpty();
+		return tags[size - 1];
+	}
+
+	public boolean isKnown(int entries)
+	{
+		//whether the top entries are all constants
+		if (entries > size){
+			return false;
+		}
+		for (int i = size - entries; i < size; i++){
+			if (tags[i] >= UNKNOWN){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int peekInt()
+	{
+		checkNotEmpty();
+		return isIntegral(tags[size - 1]) ? (int) longs[size - 1] : (int) doubles[size - 1];
+	}
+
+	public long peekLong()
+	{
+		checkNotEmpty();
+		return isIntegral(tags[size - 1]) ? longs[size - 1] : (long) doubles[size - 1];
+	}
+
+	public void pop()
+	{
+		checkNotEmpty();
+		size--;
+		words -= isWide(tags[size]) ? 2 : 1;
+	}
+
+	public void popWords(int count)
+	{
+		//pops entries until count words are gone, what a POP2 or a consuming instruction does
+		while (count > 0){
+			checkNotEmpty();
+			count -= isWide(tags[size - 1]) ? 2 : 1;
+			pop();
+		}
+	}
+
+	public void dup(int count, int depth)
+	{
+		//Copies the top count words and inserts them below the depth words under them, so DUP is dup(1, 0),
+		//DUP_X2 is dup(1, 2) and DUP2_X1 is dup(2, 1). Verified code never splits a long or double.
+		int copied = entriesIn(count, size);
+		int skipped = entriesIn(depth, size - copied);
+		int base = size - copied - skipped;
+		while (size + copied > tags.length){
+			grow();
+		}
+		move(size - copied, size, copied);
+		move(base, base + copied, skipped);
+		move(size, base, copied);
+		for (int i = size; i < size + copied; i++){
+			words += isWide(tags[i]) ? 2 : 1;
+		}
+		size += copied;
+	}
+
+	public void swap()
+	{
+		checkNotEmpty();
+		if (size < 2){
+			throw new EmptyStackException();
+		}
+		if (tags.length == size){
+			grow();
+		}
+		move(size - 1, size, 1);
+		move(size - 2, size - 1, 1);
+		move(size, size - 2, 1);
+	}
+
+	public ConstantStack copy()
+	{
+		ConstantStack copy = new ConstantStack(Math.max(tags.length, 1));
+		copy.copyFrom(this);
+		return copy;
+	}
+
+	public void copyFrom(ConstantStack other)
+	{
+		while (tags.length < other.size){
+			grow();
+		}
+		System.arraycopy(other.tags, 0, tags, 0, other.size);
+		System.arraycopy(other.longs, 0, longs, 0, other.size);
+		System.arraycopy(other.doubles, 0, doubles, 0, other.size);
+		size = other.size;
+		words = other.words;
+	}
+
+	public boolean merge(ConstantStack other)
+	{
+		//Meet with the stack flowing in from another predecessor, entries that differ become unknown.
+		//Returns whether anything changed. Verified code has the same stack shape on every incoming edge.
+		if (other.size != size || other.words != words){
+			throw new IllegalStateException("Stack shapes differ at a join: " + words + " and " + other.words + " words");
+		}
+		boolean changed = false;
+		for (int i = 0; i < size; i++){
+			if (tags[i] >= UNKNOWN){
+				continue;
+			}
+			boolean same = tags[i] == other.tags[i] && (isIntegral(tags[i]) ? longs[i] == other.longs[i]
+					: Double.doubleToRawLongBits(doubles[i]) == Double.doubleToRawLongBits(other.doubles[i]));
+			if (!same){
+				tags[i] = isWide(tags[i]) ? UNKNOWN_WIDE : UNKNOWN;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	//The typed pops convert the top value the way Number.intValue() and friends do. Verified code always
+	//pops the type that was pushed, conversion instructions are evaluated like any other operation.
+
+	public int popInt()
+	{
+		checkNotEmpty();
+		int value = isIntegral(tags[size - 1]) ? (int) longs[size - 1] : (int) doubles[size - 1];
+		pop();
+		return value;
+	}
+
+	public long popLong()
+	{
+		checkNotEmpty();
+		long value = isIntegral(tags[size - 1]) ? longs[size - 1] : (long) doubles[size - 1];
+		pop();
+		return value;
+	}
+
+	public float popFloat()
+	{
+		checkNotEmpty();
+		float value = isIntegral(tags[size - 1]) ? (float) longs[size - 1] : (float) doubles[size - 1];
+		pop();
+		return value;
+	}
+
+	public double popDouble()
+	{
+		checkNotEmpty();
+		double value = isIntegral(tags[size - 1]) ? (double) longs[size - 1] : doubles[size - 1];
+		pop();
+		return value;
+	}
+
+	public Instruction peekInstruction(ConstantPoolGen cpgen)
+	{
+		//an instruction loading the top value, see constantInstruction
+		checkNotEmpty();
+		int top = size - 1;
+		return constantInstruction(tags[top], longs[top], doubles[top], cpgen);
+	}
+
+	static Instruction constantInstruction(byte tag, long integral, double floating, ConstantPoolGen cpgen)
+	{
+		//The shortest instruction pushing the value, ICONST, BIPUSH, SIPUSH, LCONST, FCONST and DCONST where it
+		//fits and otherwise an LDC, LDC_W or LDC2_W of a pool entry. PUSH takes -0.0 for 0.0, so the negative
+		//zeros are always loaded from the pool.
+		switch (tag){
+			case INT:
+				return new PUSH(cpgen, (int) integral).getInstruction();
+			case LONG:
+				return new PUSH(cpgen, integral).getInstruction();
+			case FLOAT:
+				float value = (float) floating;
+				return isNegativeZero(value) ? new LDC(cpgen.addFloat(value)) : new PUSH(cpgen, value).getInstruction();
+			default:
+				return isNegativeZero(floating) ? new LDC2_W(cpgen.addDouble(floating)) : new PUSH(cpgen, floating).getInstruction();
+		}
+	}
+
+	private static boolean isNegativeZero(double value)
+	{
+		return Double.doubleToRawLongBits(value) == Long.MIN_VALUE;
+	}
+
+	private void push(byte tag)
+	{
+		if (size == tags.length){
+			grow();
+		}
+		tags[size++] = tag;
+		words += isWide(tag) ? 2 : 1;
+	}
+
+	private int entriesIn(int count, int top)
+	{
+		//number of entries below top that hold exactly count words
+		int entries = 0;
+		while (count > 0){
+			if (top - entries <= 0){
+				throw new EmptyStackException();
+			}
+			count -= isWide(tags[top - entries - 1]) ? 2 : 1;
+			entries++;
+		}
+		return entries;
+	}
+
+	private void move(int from, int to, int length)
+	{
+		System.arraycopy(tags, from, tags, to, length);
+		System.arraycopy(longs, from, longs, to, length);
+		System.arraycopy(doubles, from, doubles, to, length);
+	}
+
+	private void grow()
+	{
+		int capacity = tags.length * 2;
+		byte[] newTags = new byte[capacity];
+		long[] newLongs = new long[capacity];
+		double[] newDoubles = new double[capacity];
+		System.arraycopy(tags, 0, newTags, 0, size);
+		System.arraycopy(longs, 0, newLongs, 0, size);
+		System.arraycopy(doubles, 0, newDoubles, 0, size);
+		tags = newTags;
+		longs = newLongs;
+		doubles = newDoubles;
+	}
+
+	private void checkNotEmpty()
+	{
+		if (size == 0){
+			throw new EmptyStackException();
+		}
+	}
+
+	static boolean isIntegral(byte tag)
+	{
+		return tag == INT || tag == LONG;
+	}
+
+	static boolean isWide(byte tag)
+	{
+		return tag == LONG || tag == DOUBLE || tag == UNKNOWN_WIDE;
+	}
+}
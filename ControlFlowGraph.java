@@ -0,0 +1,447 @@
+package comp0012.main;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.apache.bcel.generic.*;
+
+
+//Basic blocks of one method with their successors and predecessors, exception edges, dominator tree and
+//natural loops. It is built in one pass over the instruction list (dominators are the iterative algorithm
+//of Cooper, Harvey and Kennedy, which settles in two or three sweeps for code javac emits).
+//The graph describes the list as it was when built, a pass that changes the code builds a new one.
+public class ControlFlowGraph
+{
+	public static class BasicBlock
+	{
+		final int index;
+		//position of the block in code order
+		InstructionHandle start;
+		InstructionHandle end;
+
+		final ArrayList<BasicBlock> successors = new ArrayList<>();
+		final ArrayList<BasicBlock> exceptionSuccessors = new ArrayList<>();
+		//handlers that catch exceptions thrown inside the block
+		final ArrayList<BasicBlock> predecessors = new ArrayList<>();
+		//normal and exceptional predecessors
+
+		int order = -1;
+		//reverse post order number, -1 while the block is unreachable
+		BasicBlock dominator = null;
+		int loopDepth = 0;
+
+		BasicBlock(int index, InstructionHandle start)
+		{
+			this.index = index;
+			this.start = start;
+			this.end = start;
+		}
+
+		public int getIndex()
+		{
+			return index;
+		}
+
+		public InstructionHandle getStart()
+		{
+			return start;
+		}
+
+		public InstructionHandle getEnd()
+		{
+			return end;
+		}
+
+		public List<BasicBlock> getSuccessors()
+		{
+			return successors;
+		}
+
+		public List<BasicBlock> getExceptionSuccessors()
+		{
+			return exceptionSuccessors;
+		}
+
+		public List<BasicBlock> getPredecessors()
+		{
+			return predecessors;
+		}
+
+		public BasicBlock getDominator()
+		{
+			//immediate dominator, null for the entry and for unreachable blocks
+			return dominator;
+		}
+
+		public boolean isReachable()
+		{
+			return order >= 0;
+		}
+
+		public int getLoopDepth()
+		{
+			return loopDepth;
+		}
+
+		public List<InstructionHandle> getHandles()
+		{
+			ArrayList<InstructionHandle> handles = new ArrayList<>();
+			for (InstructionHandle handle = start; ; handle = handle.getNext()){
+				handles.add(handle);
+				if (handle == end){
+					return handles;
+				}
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return "B" + index;
+		}
+	}
+
+	public static class Loop
+	{
+		final BasicBlock header;
+		final BitSet body = new BitSet();
+		//indices of the blocks in the loop, the header included
+		final ArrayList<BasicBlock> latches = new ArrayList<>();
+		//blocks jumping back to the header
+		final ArrayList<BasicBlock> blocks = new ArrayList<>();
+
+		Loop(BasicBlock header)
+		{
+			this.header = header;
+		}
+
+		public BasicBlock getHeader()
+		{
+			return header;
+		}
+
+		public List<BasicBlock> getLatches()
+		{
+			return latches;
+		}
+
+		public List<BasicBlock> getBlocks()
+		{
+			return blocks;
+		}
+
+		public boolean contains(BasicBlock block)
+		{
+			return body.get(block.index);
+		}
+	}
+
+	InstructionList instList;
+	ArrayList<BasicBlock> blocks = new ArrayList<>();
+	IdentityHashMap<InstructionHandle, BasicBlock> blockOf = new IdentityHashMap<>();
+	ArrayList<BasicBlock> reversePostOrder = new ArrayList<>();
+	ArrayList<Loop> loops = new ArrayList<>();
+
+	public ControlFlowGraph(InstructionList instList)
+	{
+		this(instList, new CodeExceptionGen[0]);
+	}
+
+	public ControlFlowGraph(MethodGen mg)
+	{
+		this(mg.getInstructionList(), mg.getExceptionHandlers());
+	}
+
+	public ControlFlowGraph(InstructionList instList, CodeExceptionGen[] handlers)
+	{
+		this.instList = instList;
+		if (instList.getStart() == null){
+			return;
+		}
+		buildBlocks(handlers);
+		buildEdges(handlers);
+		computeOrder();
+		computeDominators();
+		findLoops();
+	}
+
+	public List<BasicBlock> getBlocks()
+	{
+		//in code order, the first one is the entry
+		return blocks;
+	}
+
+	public BasicBlock getEntry()
+	{
+		return blocks.isEmpty() ? null : blocks.get(0);
+	}
+
+	public List<BasicBlock> getReversePostOrder()
+	{
+		//the reachable blocks, every block comes after its dominators
+		return reversePostOrder;
+	}
+
+	public List<Loop> getLoops()
+	{
+		//one natural loop per header, outer loops before the loops nested in them
+		return loops;
+	}
+
+	public BasicBlock blockOf(InstructionHandle handle)
+	{
+		return blockOf.get(handle);
+	}
+
+	public boolean isInLoop(InstructionHandle handle)
+	{
+		BasicBlock block = blockOf(handle);
+		return block != null && block.loopDepth > 0;
+	}
+
+	public boolean dominates(BasicBlock a, BasicBlock b)
+	{
+		if (!a.isReachable() || !b.isReachable()){
+			return false;
+		}
+		for (BasicBlock block = b; block != null; block = block.dominator){
+			if (block == a){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean dominates(InstructionHandle a, InstructionHandle b)
+	{
+		//whether every path from the entry to b goes through a
+		BasicBlock blockA = blockOf(a);
+		BasicBlock blockB = blockOf(b);
+		if (blockA != blockB){
+			return dominates(blockA, blockB);
+		}
+		for (InstructionHandle handle = blockA.start; ; handle = handle.getNext()){
+			if (handle == a){
+				return blockA.isReachable();
+			} else if (handle == b){
+				return false;
+			}
+		}
+	}
+
+	private void buildBlocks(CodeExceptionGen[] handlers)
+	{
+		HashSet<InstructionHandle> leaders = new HashSet<>();
+		//InstructionHandle keeps the identity equals, so this is a set of handles
+		leaders.add(instList.getStart());
+		for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()){
+			Instruction inst = handle.getInstruction();
+			if (inst instanceof BranchInstruction){
+				leaders.add(((BranchInstruction) inst).getTarget());
+				if (inst instanceof Select){
+					Collections.addAll(leaders, ((Select) inst).getTargets());
+				}
+			}
+			if (endsBlock(inst) && handle.getNext() != null){
+				leaders.add(handle.getNext());
+			}
+		}
+		for (CodeExceptionGen handler : handlers){
+			leaders.add(handler.getStartPC());
+			leaders.add(handler.getHandlerPC());
+			if (handler.getEndPC().getNext() != null){
+				leaders.add(handler.getEndPC().getNext());
+			}
+		}
+
+		BasicBlock current = null;
+		for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()){
+			if (leaders.contains(handle)){
+				current = new BasicBlock(blocks.size(), handle);
+				blocks.add(current);
+			}
+			current.end = handle;
+			blockOf.put(handle, current);
+		}
+	}
+
+	private void buildEdges(CodeExceptionGen[] handlers)
+	{
+		ArrayList<BasicBlock> jsrReturns = new ArrayList<>();
+		for (BasicBlock block : blocks){
+			if (block.end.getInstruction() instanceof JsrInstruction && block.end.getNext() != null){
+				jsrReturns.add(blockOf(block.end.getNext()));
+			}
+		}
+
+		for (BasicBlock block : blocks){
+			Instruction last = block.end.getInstruction();
+			InstructionHandle next = block.end.getNext();
+			if (last instanceof Select){
+				for (InstructionHandle target : ((Select) last).getTargets()){
+					addEdge(block, blockOf(target));
+				}
+				addEdge(block, blockOf(((Select) last).getTarget()));
+			} else if (last instanceof GotoInstruction){
+				addEdge(block, blockOf(((GotoInstruction) last).getTarget()));
+			} else if (last instanceof JsrInstruction){
+				addEdge(block, blockOf(((JsrInstruction) last).getTarget()));
+				//the subroutine comes back through a RET, which gets the edges to the return points
+			} else if (last instanceof IfInstruction){
+				addEdge(block, blockOf(((IfInstruction) last).getTarget()));
+				if (next != null){
+					addEdge(block, blockOf(next));
+				}
+			} else if (last instanceof RET){
+				for (BasicBlock target : jsrReturns){
+					addEdge(block, target);
+				}
+			} else if (!(last instanceof ReturnInstruction) && !(last instanceof ATHROW) && next != null){
+				addEdge(block, blockOf(next));
+			}
+		}
+
+		for (CodeExceptionGen handler : handlers){
+			BasicBlock handlerBlock = blockOf(handler.getHandlerPC());
+			BasicBlock last = blockOf(handler.getEndPC());
+			for (int i = blockOf(handler.getStartPC()).index; i <= last.index; i++){
+				BasicBlock block = blocks.get(i);
+				if (!block.exceptionSuccessors.contains(handlerBlock)){
+					block.exceptionSuccessors.add(handlerBlock);
+					handlerBlock.predecessors.add(block);
+				}
+			}
+		}
+	}
+
+	private void addEdge(BasicBlock from, BasicBlock to)
+	{
+		if (!from.successors.contains(to)){
+			from.successors.add(to);
+			to.predecessors.add(from);
+		}
+	}
+
+	private void computeOrder()
+	{
+		//iterative depth first search, numbering blocks in post order and reversing at the end
+		int[] nextChild = new int[blocks.size()];
+		boolean[] visited = new boolean[blocks.size()];
+		ArrayDeque<BasicBlock> path = new ArrayDeque<>();
+		ArrayList<BasicBlock> postOrder = new ArrayList<>();
+		path.push(getEntry());
+		visited[0] = true;
+		while (!path.isEmpty()){
+			BasicBlock block = path.peek();
+			int child = nextChild[block.index]++;
+			int normal = block.successors.size();
+			if (child < normal + block.exceptionSuccessors.size()){
+				BasicBlock successor = child < normal ? block.successors.get(child) : block.exceptionSuccessors.get(child - normal);
+				if (!visited[successor.index]){
+					visited[successor.index] = true;
+					path.push(successor);
+				}
+			} else {
+				path.pop();
+				postOrder.add(block);
+			}
+		}
+		for (int i = postOrder.size() - 1; i >= 0; i--){
+			BasicBlock block = postOrder.get(i);
+			block.order = reversePostOrder.size();
+			reversePostOrder.add(block);
+		}
+	}
+
+	private void computeDominators()
+	{
+		BasicBlock entry = getEntry();
+		entry.dominator = entry;
+		boolean changed = true;
+		while (changed){
+			changed = false;
+			for (BasicBlock block : reversePostOrder){
+				if (block == entry){
+					continue;
+				}
+				BasicBlock idom = null;
+				for (BasicBlock predecessor : block.predecessors){
+					if (predecessor.dominator == null){
+						continue;
+						//unreachable or not processed yet in this sweep
+					}
+					idom = idom == null ? predecessor : intersect(predecessor, idom);
+				}
+				if (idom != block.dominator){
+					block.dominator = idom;
+					changed = true;
+				}
+			}
+		}
+		entry.dominator = null;
+		//the entry dominates itself only while computing
+	}
+
+	private BasicBlock intersect(BasicBlock a, BasicBlock b)
+	{
+		while (a != b){
+			while (a.order > b.order){
+				a = a.dominator;
+			}
+			while (b.order > a.order){
+				b = b.dominator;
+			}
+		}
+		return a;
+	}
+
+	private void findLoops()
+	{
+		//a back edge goes to a block that dominates its source, the loop is everything that reaches the
+		//source without passing through the header
+		for (BasicBlock header : reversePostOrder){
+			Loop loop = null;
+			for (BasicBlock latch : header.predecessors){
+				if (!latch.isReachable() || (loop != null && loop.latches.contains(latch)) || !(latch.successors.contains(header) || latch.exceptionSuccessors.contains(header)) || !dominates(header, latch)){
+					continue;
+				}
+				if (loop == null){
+					loop = new Loop(header);
+					loop.body.set(header.index);
+				}
+				loop.latches.add(latch);
+				ArrayDeque<BasicBlock> work = new ArrayDeque<>();
+				work.push(latch);
+				while (!work.isEmpty()){
+					BasicBlock block = work.pop();
+					if (loop.body.get(block.index)){
+						continue;
+					}
+					loop.body.set(block.index);
+					for (BasicBlock predecessor : block.predecessors){
+						if (predecessor.isReachable()){
+							work.push(predecessor);
+						}
+					}
+				}
+			}
+			if (loop != null){
+				for (int i = loop.body.nextSetBit(0); i >= 0; i = loop.body.nextSetBit(i + 1)){
+					BasicBlock block = blocks.get(i);
+					loop.blocks.add(block);
+					block.loopDepth++;
+				}
+				loops.add(loop);
+			}
+		}
+	}
+
+	static boolean endsBlock(Instruction inst)
+	{
+		return inst instanceof BranchInstruction || inst instanceof ReturnInstruction || inst instanceof ATHROW || inst instanceof RET;
+	}
+}
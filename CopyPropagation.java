@@ -0,0 +1,220 @@
+package comp0012.main;
+import java.util.Arrays;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+
+
+//Copy propagation over the control flow graph.
+//An xLOAD a directly followed by an xSTORE b makes b a copy of a, until either of them is written again.
+//The copies holding at the start of each block are solved forwards, a copy only survives a join if it
+//holds on every incoming edge. Loads of a copy are then rewritten to load the slot it was copied from, so
+//the store to the copy is usually left without readers and DeadStoreElimination removes it.
+//
+//An xSTORE n directly followed by an xLOAD n becomes DUP (DUP2 for longs and doubles) and the store, so
+//the value is not read back from the local. If nothing else reads n the store goes the same way.
+public class CopyPropagation
+{
+	MethodGen mg;
+	InstructionList instList;
+	ConstantPoolGen cpgen;
+
+	ControlFlowGraph cfg;
+	Copies[] entryCopies;
+	//copies holding at the start of each block, null until a reachable predecessor was visited
+	int slots;
+	int rewrittenLoads = 0;
+	int reusedStores = 0;
+
+	public CopyPropagation(MethodGen mg, ConstantPoolGen cpgen)
+	{
+		this.mg = mg;
+		this.instList = mg.getInstructionList();
+		this.cpgen = cpgen;
+	}
+
+	public int run()
+	{
+		//returns the number of instructions rewritten
+		if (instList.isEmpty()){
+			return 0;
+		}
+		cfg = new ControlFlowGraph(mg);
+		slots = LocalLattice.slotsUsedBy(instList);
+		solve();
+		for (ControlFlowGraph.BasicBlock block : cfg.getReversePostOrder()){
+			Copies copies = entryCopies[block.getIndex()].copy();
+			for (InstructionHandle handle : block.getHandles()){
+				transfer(handle, copies, true);
+			}
+		}
+		reuseStoredValues();
+		//after the loads were rewritten, a store to a copy followed by a load of it is gone by then
+		return rewrittenLoads + reusedStores;
+	}
+
+	public int getRewrittenLoads()
+	{
+		return rewrittenLoads;
+	}
+
+	public int getReusedStores()
+	{
+		return reusedStores;
+	}
+
+	private void reuseStoredValues()
+	{
+		//xSTORE n; xLOAD n becomes DUP; xSTORE n, as long as nothing jumps to the load
+		for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()){
+			InstructionHandle next = handle.getNext();
+			if (next == null || next.hasTargeters()){
+				continue;
+			}
+			Instruction inst = handle.getInstruction();
+			Instruction nextInst = next.getInstruction();
+			if (inst instanceof StoreInstruction && nextInst instanceof LoadInstruction
+					&& ((StoreInstruction) inst).getIndex() == ((LoadInstruction) nextInst).getIndex()
+					&& ((StoreInstruction) inst).getCanonicalTag() - Const.ISTORE == ((LoadInstruction) nextInst).getCanonicalTag() - Const.ILOAD){
+				int size = ((StoreInstruction) inst).getType(cpgen).getSize();
+				handle.setInstruction(size == 2 ? InstructionConst.DUP2 : InstructionConst.DUP);
+				next.setInstruction(inst);
+				reusedStores++;
+			}
+		}
+	}
+
+	private void solve()
+	{
+		int blocks = cfg.getBlocks().size();
+		entryCopies = new Copies[blocks];
+		entryCopies[cfg.getEntry().getIndex()] = new Copies(slots);
+		boolean changed = true;
+		while (changed){
+			changed = false;
+			for (ControlFlowGraph.BasicBlock block : cfg.getReversePostOrder()){
+				Copies copies = entryCopies[block.getIndex()];
+				if (copies == null){
+					continue;
+				}
+				copies = copies.copy();
+				for (InstructionHandle handle : block.getHandles()){
+					transfer(handle, copies, false);
+				}
+				for (ControlFlowGraph.BasicBlock successor : block.getSuccessors()){
+					changed |= flow(successor, copies);
+				}
+				for (ControlFlowGraph.BasicBlock handler : block.getExceptionSuccessors()){
+					changed |= flow(handler, new Copies(slots));
+					//the exception may come before any of the copies were made
+				}
+			}
+		}
+	}
+
+	private boolean flow(ControlFlowGraph.BasicBlock to, Copies copies)
+	{
+		Copies entry = entryCopies[to.getIndex()];
+		if (entry == null){
+			entryCopies[to.getIndex()] = copies.copy();
+			return true;
+		}
+		return entry.merge(copies);
+	}
+
+	private void transfer(InstructionHandle handle, Copies copies, boolean rewrite)
+	{
+		Instruction inst = handle.getInstruction();
+		if (inst instanceof LoadInstruction){
+			LoadInstruction load = (LoadInstruction) inst;
+			int source = copies.sourceOf(load.getIndex());
+			if (rewrite && source >= 0){
+				LoadInstruction copy = (LoadInstruction) load.copy();
+				copy.setIndex(source);
+				handle.setInstruction(copy);
+				rewrittenLoads++;
+			}
+		} else if (inst instanceof StoreInstruction){
+			StoreInstruction store = (StoreInstruction) inst;
+			int slot = store.getIndex();
+			int size = store.getType(cpgen).getSize();
+			copies.kill(slot, size);
+			InstructionHandle prev = handle.getPrev();
+			if (prev != null && !handle.hasTargeters() && prev.getInstruction() instanceof LoadInstruction
+					&& ((LoadInstruction) prev.getInstruction()).getCanonicalTag() - Const.ILOAD == store.getCanonicalTag() - Const.ISTORE){
+				int loaded = ((LoadInstruction) prev.getInstruction()).getIndex();
+				int source = copies.sourceOf(loaded);
+				//the load was rewritten already when rewriting, otherwise follow the copy it reads
+				copies.add(slot, source >= 0 ? source : loaded, size);
+			}
+		} else if (inst instanceof IINC){
+			copies.kill(((IINC) inst).getIndex(), 1);
+		} else if (inst instanceof RET){
+			copies.kill(((RET) inst).getIndex(), 1);
+		}
+	}
+
+	//Slot b is a copy of slot source[b] taking size[b] words, -1 if it is not a copy. Sources are never
+	//copies themselves, a copy of a copy points at the original.
+	static class Copies
+	{
+		int[] source;
+		int[] size;
+
+		Copies(int slots)
+		{
+			source = new int[slots];
+			size = new int[slots];
+			Arrays.fill(source, -1);
+		}
+
+		int sourceOf(int slot)
+		{
+			return slot < source.length ? source[slot] : -1;
+		}
+
+		void add(int slot, int from, int words)
+		{
+			if (slot != from && slot < source.length){
+				source[slot] = from;
+				size[slot] = words;
+			}
+		}
+
+		void kill(int slot, int words)
+		{
+			//slot was written, it is no longer a copy and no longer the source of one
+			for (int b = 0; b < source.length; b++){
+				if (source[b] >= 0 && (overlaps(b, size[b], slot, words) || overlaps(source[b], size[b], slot, words))){
+					source[b] = -1;
+				}
+			}
+		}
+
+		private static boolean overlaps(int a, int aWords, int b, int bWords)
+		{
+			return a < b + bWords && b < a + aWords;
+		}
+
+		boolean merge(Copies other)
+		{
+			//keep the copies both sides agree on, returns whether anything changed
+			boolean changed = false;
+			for (int b = 0; b < source.length; b++){
+				if (source[b] >= 0 && (source[b] != other.source[b] || size[b] != other.size[b])){
+					source[b] = -1;
+					changed = true;
+				}
+			}
+			return changed;
+		}
+
+		Copies copy()
+		{
+			Copies copy = new Copies(source.length);
+			System.arraycopy(source, 0, copy.source, 0, source.length);
+			System.arraycopy(size, 0, copy.size, 0, size.length);
+			return copy;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package comp0012.main;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantDouble;
+import org.apache.bcel.classfile.ConstantFloat;
+import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantLong;
+import org.apache.bcel.classfile.ConstantString;
+import org.apache.bcel.generic.*;
+
+
+//Removes code that can never run or whose result is never used.
+//Unreachable basic blocks are the ones the control flow graph cannot reach from the entry, e.g. the arm of
+//a branch that was folded away or the code after a loop whose condition folded to true. A value that is
+//popped right after being computed by instructions without side effects (constants, loads, arithmetic that
+//cannot throw, conversions, DUP) is removed together with the POP. Both are repeated until nothing changes,
+//since removing one often exposes the other.
+public class DeadCodeElimination
+{
+	MethodGen mg;
+	InstructionList instList;
+	ConstantPoolGen cpgen;
+
+	int bytesRemoved = 0;
+
+	public DeadCodeElimination(MethodGen mg, ConstantPoolGen cpgen)
+	{
+		this.mg = mg;
+		this.instList = mg.getInstructionList();
+		this.cpgen = cpgen;
+	}
+
+	DeadCodeElimination(InstructionList instList, ConstantPoolGen cpgen)
+	{
+		//for code without exception handlers or debug information, like the folder's
+		this.instList = instList;
+		this.cpgen = cpgen;
+	}
+
+	public int run()
+	{
+		//returns the number of bytes of code removed
+		if (instList.isEmpty()){
+			return 0;
+		}
+		int before = instList.getByteCode().length;
+		boolean changed = true;
+		while (changed){
+			changed = removeUnreachableBlocks();
+			changed |= removeUnusedValues();
+		}
+		bytesRemoved = before - instList.getByteCode().length;
+		return bytesRemoved;
+	}
+
+	public int getBytesRemoved()
+	{
+		return bytesRemoved;
+	}
+
+	boolean removeUnreachableBlocks()
+	{
+		ControlFlowGraph cfg = mg != null ? new ControlFlowGraph(mg) : new ControlFlowGraph(instList);
+		Set<Instruction> dead = Collections.newSetFromMap(new IdentityHashMap<>());
+		//Instruction overrides equals, the dead ones are told apart by identity
+		for (ControlFlowGraph.BasicBlock block : cfg.getBlocks()){
+			if (!block.isReachable()){
+				for (InstructionHandle handle : block.getHandles()){
+					dead.add(handle.getInstruction());
+				}
+			}
+		}
+		if (dead.isEmpty()){
+			return false;
+		}
+		if (mg != null){
+			trimExceptionHandlers(cfg);
+		}
+
+		//delete runs of adjacent unreachable blocks from the end, so earlier handles stay valid
+		List<ControlFlowGraph.BasicBlock> blocks = cfg.getBlocks();
+		for (int i = blocks.size() - 1; i >= 0; i--){
+			if (blocks.get(i).isReachable()){
+				continue;
+			}
+			int first = i;
+			while (first > 0 && !blocks.get(first - 1).isReachable()){
+				first--;
+			}
+			try {
+				instList.delete(blocks.get(first).getStart(), blocks.get(i).getEnd());
+			} catch (TargetLostException e) {
+				for (InstructionHandle target : e.getTargets()){
+					for (InstructionTargeter targeter : target.getTargeters()){
+						if (targeter instanceof LineNumberGen){
+							mg.removeLineNumber((LineNumberGen) targeter);
+						} else if (targeter instanceof LocalVariableGen){
+							mg.removeLocalVariable((LocalVariableGen) targeter);
+							//debug information about code that is gone
+						} else if (!dead.contains(targeter)){
+							throw new IllegalStateException("Reachable code targets unreachable " + target);
+						}
+						//otherwise a branch in unreachable code deleted after this run, it lets go of the target then
+					}
+				}
+			}
+			i = first;
+		}
+		return true;
+	}
+
+	private void trimExceptionHandlers(ControlFlowGraph cfg)
+	{
+		//drop handlers that only protect unreachable code and shrink the others to their reachable part
+		for (CodeExceptionGen handler : mg.getExceptionHandlers()){
+			if (!cfg.blockOf(handler.getHandlerPC()).isReachable()){
+				removeExceptionHandler(handler);
+				continue;
+			}
+			InstructionHandle start = handler.getStartPC();
+			InstructionHandle end = handler.getEndPC();
+			while (start != end && !cfg.blockOf(start).isReachable()){
+				start = start.getNext();
+			}
+			while (end != start && !cfg.blockOf(end).isReachable()){
+				end = end.getPrev();
+			}
+			if (!cfg.blockOf(start).isReachable()){
+				removeExceptionHandler(handler);
+			} else {
+				handler.setStartPC(start);
+				handler.setEndPC(end);
+			}
+		}
+	}
+
+	private void removeExceptionHandler(CodeExceptionGen handler)
+	{
+		mg.removeExceptionHandler(handler);
+		handler.getStartPC().removeTargeter(handler);
+		handler.getEndPC().removeTargeter(handler);
+		handler.getHandlerPC().removeTargeter(handler);
+		//MethodGen leaves it registered with its handles
+	}
+
+	boolean removeUnusedValues()
+	{
+		boolean changed = false;
+		InstructionHandle handle = instList.getStart();
+		while (handle != null){
+			InstructionHandle next = handle.getNext();
+			short opcode = handle.getInstruction().getOpcode();
+			if ((opcode == Const.POP || opcode == Const.POP2) && next != null){
+				InstructionHandle producer = producerOf(handle, opcode == Const.POP ? 1 : 2);
+				if (producer != null){
+					delete(producer, handle, next);
+					changed = true;
+				}
+			}
+			handle = next;
+		}
+		return changed;
+	}
+
+	private InstructionHandle producerOf(InstructionHandle pop, int words)
+	{
+		//Start of the side effect free instructions that compute exactly the popped words, null if there is
+		//none. Nothing may jump into the middle of them, a jump to their start is moved past the pop.
+		if (pop.hasTargeters() || pop.getPrev() == null){
+			return null;
+		}
+		InstructionHandle prev = pop.getPrev();
+		short prevOpcode = prev.getInstruction().getOpcode();
+		if ((words == 1 && prevOpcode == Const.DUP) || (words == 2 && prevOpcode == Const.DUP2)){
+			return prev;
+			//duplicating a value only to pop the copy
+		}
+		int depth = words;
+		for (InstructionHandle handle = prev; handle != null; handle = handle.getPrev()){
+			Instruction inst = handle.getInstruction();
+			if (!isPure(inst)){
+				return null;
+			}
+			int produced = inst.produceStack(cpgen);
+			if (produced > depth){
+				return null;
+				//part of what it pushes stays on the stack
+			}
+			depth += inst.consumeStack(cpgen) - produced;
+			if (depth == 0){
+				return handle;
+			}
+			if (handle.hasTargeters()){
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private boolean isPure(Instruction inst)
+	{
+		//no side effect and no exception, so leaving it out cannot be observed
+		if (inst instanceof LDC || inst instanceof LDC2_W){
+			Constant constant = cpgen.getConstant(((CPInstruction) inst).getIndex());
+			return constant instanceof ConstantInteger || constant instanceof ConstantFloat || constant instanceof ConstantString
+					|| constant instanceof ConstantLong || constant instanceof ConstantDouble;
+			//loading a class, method handle or dynamic constant may run code
+		}
+		switch (inst.getOpcode()){
+			case Const.IDIV: case Const.IREM: case Const.LDIV: case Const.LREM:
+				return false;
+				//division by zero throws
+			default:
+		}
+		return inst instanceof ConstantPushInstruction || inst instanceof LoadInstruction || inst instanceof ArithmeticInstruction
+				|| inst instanceof ConversionInstruction || inst instanceof LCMP || inst instanceof FCMPL || inst instanceof FCMPG
+				|| inst instanceof DCMPL || inst instanceof DCMPG || inst instanceof StackInstruction || inst instanceof NOP;
+	}
+
+	private void delete(InstructionHandle from, InstructionHandle to, InstructionHandle after)
+	{
+		try {
+			instList.delete(from, to);
+		} catch (TargetLostException e) {
+			//only the first handle can be a target, the deleted code leaves the stack as it found it
+			for (InstructionHandle target : e.getTargets()){
+				for (InstructionTargeter targeter : target.getTargeters()){
+					targeter.updateTarget(target, after);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package comp0012.main;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.apache.bcel.generic.*;
+
+
+//Removes stores to locals that no path ever reads again.
+//Liveness is solved backwards over the control flow graph: a slot is live at a point if some path from there
+//loads it before storing it again. Loops need no special care, the live sets of a loop just grow until they
+//are stable. A block that can throw into a handler keeps everything the handler needs live at every
+//instruction, since the exception may come from any of them.
+//
+//A dead xSTORE becomes a POP or POP2 so the stack stays balanced, a dead IINC is deleted. The pops are then
+//removed together with the pure instructions computing their value (see DeadCodeElimination), which can
+//leave further stores dead, so the whole thing repeats until nothing changes.
+public class DeadStoreElimination
+{
+	MethodGen mg;
+	InstructionList instList;
+	ConstantPoolGen cpgen;
+
+	ControlFlowGraph cfg;
+	BitSet[] liveIn;
+	BitSet[] liveOut;
+	int removedStores = 0;
+
+	public DeadStoreElimination(MethodGen mg, ConstantPoolGen cpgen)
+	{
+		this.mg = mg;
+		this.instList = mg.getInstructionList();
+		this.cpgen = cpgen;
+	}
+
+	public int run()
+	{
+		//returns the number of stores removed
+		if (instList.isEmpty() || hasSubroutines()){
+			return removedStores;
+		}
+		int removed;
+		do {
+			cfg = new ControlFlowGraph(mg);
+			solve();
+			removed = removeDeadStores();
+			removedStores += removed;
+			if (removed > 0){
+				new DeadCodeElimination(mg, cpgen).removeUnusedValues();
+			}
+		} while (removed > 0);
+		return removedStores;
+	}
+
+	public int getRemovedStores()
+	{
+		return removedStores;
+	}
+
+	private boolean hasSubroutines()
+	{
+		//the return address of a JSR lives in a local only RET reads, leave such old code alone
+		for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()){
+			Instruction inst = handle.getInstruction();
+			if (inst instanceof JsrInstruction || inst instanceof RET){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void solve()
+	{
+		//iterate over the blocks in post order, successors before predecessors, until the sets are stable
+		List<ControlFlowGraph.BasicBlock> order = cfg.getReversePostOrder();
+		int blocks = cfg.getBlocks().size();
+		liveIn = new BitSet[blocks];
+		liveOut = new BitSet[blocks];
+		for (int i = 0; i < blocks; i++){
+			liveIn[i] = new BitSet();
+			liveOut[i] = new BitSet();
+		}
+		boolean changed = true;
+		while (changed){
+			changed = false;
+			for (int i = order.size() - 1; i >= 0; i--){
+				ControlFlowGraph.BasicBlock block = order.get(i);
+				BitSet out = liveOut[block.getIndex()];
+				for (ControlFlowGraph.BasicBlock successor : block.getSuccessors()){
+					out.or(liveIn[successor.getIndex()]);
+				}
+				BitSet in = (BitSet) out.clone();
+				BitSet caught = caughtLive(block);
+				List<InstructionHandle> handles = block.getHandles();
+				for (int j = handles.size() - 1; j >= 0; j--){
+					transfer(handles.get(j).getInstruction(), in, caught);
+				}
+				if (!in.equals(liveIn[block.getIndex()])){
+					liveIn[block.getIndex()] = in;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private BitSet caughtLive(ControlFlowGraph.BasicBlock block)
+	{
+		//slots the handlers of the block read
+		BitSet caught = new BitSet();
+		for (ControlFlowGraph.BasicBlock handler : block.getExceptionSuccessors()){
+			caught.or(liveIn[handler.getIndex()]);
+		}
+		return caught;
+	}
+
+	private void transfer(Instruction inst, BitSet live, BitSet caught)
+	{
+		//live before inst, given live after it
+		if (inst instanceof StoreInstruction){
+			int slot = ((StoreInstruction) inst).getIndex();
+			live.clear(slot, slot + ((StoreInstruction) inst).getType(cpgen).getSize());
+		} else if (inst instanceof LoadInstruction){
+			int slot = ((LoadInstruction) inst).getIndex();
+			live.set(slot, slot + ((LoadInstruction) inst).getType(cpgen).getSize());
+		} else if (inst instanceof IINC){
+			live.set(((IINC) inst).getIndex());
+			//reads the slot as well as writing it
+		}
+		live.or(caught);
+	}
+
+	private int removeDeadStores()
+	{
+		ArrayList<InstructionHandle> dead = new ArrayList<>();
+		for (ControlFlowGraph.BasicBlock block : cfg.getReversePostOrder()){
+			BitSet live = (BitSet) liveOut[block.getIndex()].clone();
+			BitSet caught = caughtLive(block);
+			live.or(caught);
+			List<InstructionHandle> handles = block.getHandles();
+			for (int j = handles.size() - 1; j >= 0; j--){
+				Instruction inst = handles.get(j).getInstruction();
+				if ((inst instanceof StoreInstruction || inst instanceof IINC) && !live.get(((IndexedInstruction) inst).getIndex())){
+					dead.add(handles.get(j));
+				}
+				transfer(inst, live, caught);
+			}
+		}
+		//unreachable blocks are left to DeadCodeElimination
+
+		for (InstructionHandle handle : dead){
+			Instruction inst = handle.getInstruction();
+			if (inst instanceof IINC){
+				delete(handle);
+			} else if (((StoreInstruction) inst).getType(cpgen).getSize() == 2){
+				handle.setInstruction(InstructionConst.POP2);
+			} else {
+				handle.setInstruction(InstructionConst.POP);
+			}
+		}
+		return dead.size();
+	}
+
+	private void delete(InstructionHandle handle)
+	{
+		//an IINC leaves the stack alone, whatever jumped to it can jump to the next instruction
+		InstructionHandle next = handle.getNext();
+		InstructionHandle prev = handle.getPrev();
+		for (InstructionTargeter targeter : handle.getTargeters()){
+			if (targeter instanceof CodeExceptionGen){
+				CodeExceptionGen handler = (CodeExceptionGen) targeter;
+				if (handler.getStartPC() == handle && handler.getEndPC() == handle){
+					mg.removeExceptionHandler(handler);
+					handler.getHandlerPC().removeTargeter(handler);
+					handle.removeTargeter(handler);
+					//an IINC cannot throw, the handler protected nothing
+				} else if (handler.getEndPC() == handle){
+					handler.setEndPC(prev);
+					//the protected range ends before it instead of growing past it
+				}
+			}
+		}
+		try {
+			instList.delete(handle);
+		} catch (TargetLostException e) {
+			for (InstructionHandle target : e.getTargets()){
+				for (InstructionTargeter targeter : target.getTargeters()){
+					targeter.updateTarget(target, next);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package comp0012.main;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+public class DiskClassCache implements ClassCache
+{
+	public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+	//eviction goes down to this fraction of the cap, so it does not run again on the next put
+	static final double LOW_WATER_MARK = 0.9;
+
+	static final String SUFFIX = ".class";
+	static final String TEMP_SUFFIX = ".tmp";
+
+	//a temporary file this old was left by a writer that died, a live one renames its file right after writing it
+	static final long STALE_TEMP_MILLIS = 60 * 60 * 1000L;
+
+	Path root;
+	long maxBytes;
+	long usedBytes = 0;
+
+	long hits = 0;
+	long misses = 0;
+	long evictions = 0;
+
+	public DiskClassCache(String directory, long maxBytes) throws IOException
+	{
+		//Several processes may share the directory. Entries are content addressed and written atomically,
+		//so the worst a race can do is optimize a class twice or evict an entry another process just used.
+		this.root = Paths.get(directory);
+		this.maxBytes = maxBytes;
+		Files.createDirectories(root);
+		removeStaleTemps();
+		for (Path entry : listEntries()){
+			usedBytes += sizeOf(entry);
+		}
+	}
+
+	@Override
+	public byte[] get(String key)
+	{
+		Path entry = pathFor(key);
+		try {
+			byte[] value = Files.readAllBytes(entry);
+			touch(entry);
+			return value;
+		} catch (NoSuchFileException e) {
+			synchronized (this) {
+				misses++;
+			}
+			return null;
+		} catch (IOException e) {
+			System.err.println("Could not read cache entry " + entry + ": " + e);
+			synchronized (this) {
+				misses++;
+			}
+			return null;
+		}
+	}
+
+	private void touch(Path entry)
+	{
+		//counts the hit and marks the entry as just used, the modification time is the recency used for eviction
+		synchronized (this) {
+			hits++;
+		}
+		try {
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			//evicted since it was read, the bytes read are still the entry
+		}
+	}
+
+	@Override
+	public void put(String key, byte[] value)
+	{
+		Path entry = pathFor(key);
+		if (Files.exists(entry)){
+			return;
+			//entries are content addressed, another thread or process already stored the same bytes
+		}
+		Path temp = null;
+		long replaced;
+		try {
+			Files.createDirectories(entry.getParent());
+			temp = Files.createTempFile(entry.getParent(), key, TEMP_SUFFIX);
+			Files.write(temp, value);
+			replaced = sizeOf(entry);
+			//0 unless a concurrent put got there first since the check above
+			Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			//readers either see the old complete file or the new complete file, never a partial one
+		} catch (IOException e) {
+			System.err.println("Could not write cache entry " + entry + ": " + e);
+			try {
+				if (temp != null){
+					Files.deleteIfExists(temp);
+				}
+			} catch (IOException ignored) {
+			}
+			return;
+		}
+
+		boolean overCap;
+		synchronized (this) {
+			usedBytes += value.length - replaced;
+			overCap = usedBytes > maxBytes;
+		}
+		if (overCap){
+			evict();
+		}
+	}
+
+	private synchronized void evict()
+	{
+		//Rescan the directory because other processes add and remove entries too,
+		//then delete the least recently used entries until the low water mark is reached.
+		try {
+			removeStaleTemps();
+			ArrayList<Path> entries = listEntries();
+			HashMap<Path, FileTime> times = new HashMap<>();
+			long total = 0;
+			for (Path entry : entries){
+				total += sizeOf(entry);
+				times.put(entry, lastModified(entry));
+			}
+			entries.sort(Comparator.comparing(times::get));
+
+			long target = (long) (maxBytes * LOW_WATER_MARK);
+			for (Path entry : entries){
+				if (total <= target){
+					break;
+				}
+				long size = sizeOf(entry);
+				if (Files.deleteIfExists(entry)){
+					total -= size;
+					evictions++;
+				}
+			}
+			usedBytes = total;
+		} catch (IOException e) {
+			System.err.println("Could not evict from cache " + root + ": " + e);
+		}
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	public synchronized long getUsedBytes()
+	{
+		return usedBytes;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "DiskClassCache[" + root + ", bytes=" + usedBytes + "/" + maxBytes + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+
+	private Path pathFor(String key)
+	{
+		//two character fan out keeps directories small on large caches
+		return root.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+	}
+
+	private ArrayList<Path> listEntries() throws IOException
+	{
+		return list(SUFFIX);
+	}
+
+	private void removeStaleTemps() throws IOException
+	{
+		//the temporary files of writers that crashed before renaming them, eviction does not count them
+		long cutoff = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+		for (Path temp : list(TEMP_SUFFIX)){
+			if (lastModified(temp).toMillis() < cutoff){
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	private ArrayList<Path> list(String suffix) throws IOException
+	{
+		try (Stream<Path> walk = Files.walk(root, 2)) {
+			return walk.filter(p -> p.getFileName().toString().endsWith(suffix) && Files.isRegularFile(p))
+					.collect(Collectors.toCollection(ArrayList::new));
+		}
+	}
+
+	private static long sizeOf(Path entry)
+	{
+		try {
+			return Files.size(entry);
+		} catch (IOException e) {
+			return 0;
+			//removed by another process in the meantime
+		}
+	}
+
+	private static FileTime lastModified(Path entry)
+	{
+		try {
+			return Files.getLastModifiedTime(entry);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package comp0012.main;
+import org.apache.bcel.Const;
+
+
+//Evaluates bytecode instructions on a ConstantStack, dispatching on the opcode.
+//Every case is one dense switch, which the JIT compiles to a jump table, instead of the instanceof chains
+//the folder used to walk for each instruction. The results are the ones the JVM would compute, and an
+//instruction that would throw at run time (integer division by zero) is not evaluated.
+public final class Evaluator
+{
+	private Evaluator()
+	{
+	}
+
+	public static int arity(short opcode)
+	{
+		//number of stack values evaluate() pops for this opcode, -1 if it cannot evaluate it
+		switch (opcode){
+			case Const.IADD: case Const.LADD: case Const.FADD: case Const.DADD:
+			case Const.ISUB: case Const.LSUB: case Const.FSUB: case Const.DSUB:
+			case Const.IMUL: case Const.LMUL: case Const.FMUL: case Const.DMUL:
+			case Const.IDIV: case Const.LDIV: case Const.FDIV: case Const.DDIV:
+			case Const.IREM: case Const.LREM: case Const.FREM: case Const.DREM:
+			case Const.IAND: case Const.LAND: case Const.IOR: case Const.LOR: case Const.IXOR: case Const.LXOR:
+			case Const.ISHL: case Const.LSHL: case Const.ISHR: case Const.LSHR: case Const.IUSHR: case Const.LUSHR:
+			case Const.LCMP: case Const.FCMPL: case Const.FCMPG: case Const.DCMPL: case Const.DCMPG:
+				return 2;
+			case Const.INEG: case Const.LNEG: case Const.FNEG: case Const.DNEG:
+			case Const.I2L: case Const.I2F: case Const.I2D:
+			case Const.L2I: case Const.L2F: case Const.L2D:
+			case Const.F2I: case Const.F2L: case Const.F2D:
+			case Const.D2I: case Const.D2L: case Const.D2F:
+			case Const.I2B: case Const.I2C: case Const.I2S:
+				return 1;
+			default:
+				return -1;
+		}
+	}
+
+	public static boolean evaluate(short opcode, ConstantStack stack)
+	{
+		//Pops the operands of the instruction and pushes its result. Returns false, leaving the stack
+		//untouched, if the opcode is not one of the above, the operands are not all constants or it would throw.
+		int arity = arity(opcode);
+		if (arity < 0 || !stack.isKnown(arity)){
+			return false;
+		}
+		switch (opcode){
+			case Const.IDIV: case Const.IREM:
+				if (stack.peekInt() == 0){
+					return false;
+				}
+				break;
+			case Const.LDIV: case Const.LREM:
+				if (stack.peekLong() == 0){
+					return false;
+				}
+				break;
+			default:
+		}
+
+		switch (opcode){
+			case Const.IADD: { int b = stack.popInt(); stack.pushInt(stack.popInt() + b); break; }
+			case Const.ISUB: { int b = stack.popInt(); stack.pushInt(stack.popInt() - b); break; }
+			case Const.IMUL: { int b = stack.popInt(); stack.pushInt(stack.popInt() * b); break; }
+			case Const.IDIV: { int b = stack.popInt(); stack.pushInt(stack.popInt() / b); break; }
+			case Const.IREM: { int b = stack.popInt(); stack.pushInt(stack.popInt() % b); break; }
+			case Const.IAND: { int b = stack.popInt(); stack.pushInt(stack.popInt() & b); break; }
+			case Const.IOR:  { int b = stack.popInt(); stack.pushInt(stack.popInt() | b); break; }
+			case Const.IXOR: { int b = stack.popInt(); stack.pushInt(stack.popInt() ^ b); break; }
+			case Const.ISHL: { int b = stack.popInt(); stack.pushInt(stack.popInt() << b); break; }
+			case Const.ISHR: { int b = stack.popInt(); stack.pushInt(stack.popInt() >> b); break; }
+			case Const.IUSHR: { int b = stack.popInt(); stack.pushInt(stack.popInt() >>> b); break; }
+
+			case Const.LADD: { long b = stack.popLong(); stack.pushLong(stack.popLong() + b); break; }
+			case Const.LSUB: { long b = stack.popLong(); stack.pushLong(stack.popLong() - b); break; }
+			case Const.LMUL: { long b = stack.popLong(); stack.pushLong(stack.popLong() * b); break; }
+			case Const.LDIV: { long b = stack.popLong(); stack.pushLong(stack.popLong() / b); break; }
+			case Const.LREM: { long b = stack.popLong(); stack.pushLong(stack.popLong() % b); break; }
+			case Const.LAND: { long b = stack.popLong(); stack.pushLong(stack.popLong() & b); break; }
+			case Const.LOR:  { long b = stack.popLong(); stack.pushLong(stack.popLong() | b); break; }
+			case Const.LXOR: { long b = stack.popLong(); stack.pushLong(stack.popLong() ^ b); break; }
+			//the shift distance of a long shift is an int
+			case Const.LSHL: { int b = stack.popInt(); stack.pushLong(stack.popLong() << b); break; }
+			case Const.LSHR: { int b = stack.popInt(); stack.pushLong(stack.popLong() >> b); break; }
+			case Const.LUSHR: { int b = stack.popInt(); stack.pushLong(stack.popLong() >>> b); break; }
+
+			case Const.FADD: { float b = stack.popFloat(); stack.pushFloat(stack.popFloat() + b); break; }
+			case Const.FSUB: { float b = stack.popFloat(); stack.pushFloat(stack.popFloat() - b); break; }
+			case Const.FMUL: { float b = stack.popFloat(); stack.pushFloat(stack.popFloat() * b); break; }
+			case Const.FDIV: { float b = stack.popFloat(); stack.pushFloat(stack.popFloat() / b); break; }
+			case Const.FREM: { float b = stack.popFloat(); stack.pushFloat(stack.popFloat() % b); break; }
+
+			case Const.DADD: { double b = stack.popDouble(); stack.pushDouble(stack.popDouble() + b); break; }
+			case Const.DSUB: { double b = stack.popDouble(); stack.pushDouble(stack.popDouble() - b); break; }
+			case Const.DMUL: { double b = stack.popDouble(); stack.pushDouble(stack.popDouble() * b); break; }
+			case Const.DDIV: { double b = stack.popDouble(); stack.pushDouble(stack.popDouble() / b); break; }
+			case Const.DREM: { double b = stack.popDouble(); stack.pushDouble(stack.popDouble() % b); break; }
+
+			case Const.INEG: stack.pushInt(-stack.popInt()); break;
+			case Const.LNEG: stack.pushLong(-stack.popLong()); break;
+			case Const.FNEG: stack.pushFloat(-stack.popFloat()); break;
+			case Const.DNEG: stack.pushDouble(-stack.popDouble()); break;
+
+			case Const.LCMP: { long b = stack.popLong(); stack.pushInt(Long.compare(stack.popLong(), b)); break; }
+			//the L and G variants only differ in what a NaN operand gives
+			case Const.FCMPL: { float b = stack.popFloat(); stack.pushInt(compare(stack.popFloat(), b, -1)); break; }
+			case Const.FCMPG: { float b = stack.popFloat(); stack.pushInt(compare(stack.popFloat(), b, 1)); break; }
+			case Const.DCMPL: { double b = stack.popDouble(); stack.pushInt(compare(stack.popDouble(), b, -1)); break; }
+			case Const.DCMPG: { double b = stack.popDouble(); stack.pushInt(compare(stack.popDouble(), b, 1)); break; }
+
+			//Java casts narrow the same way the conversion instructions do, NaN included
+			case Const.I2L: stack.pushLong(stack.popInt()); break;
+			case Const.I2F: stack.pushFloat(stack.popInt()); break;
+			case Const.I2D: stack.pushDouble(stack.popInt()); break;
+			case Const.L2I: stack.pushInt((int) stack.popLong()); break;
+			case Const.L2F: stack.pushFloat(stack.popLong()); break;
+			case Const.L2D: stack.pushDouble(stack.popLong()); break;
+			case Const.F2I: stack.pushInt((int) stack.popFloat()); break;
+			case Const.F2L: stack.pushLong((long) stack.popFloat()); break;
+			case Const.F2D: stack.pushDouble(stack.popFloat()); break;
+			case Const.D2I: stack.pushInt((int) stack.popDouble()); break;
+			case Const.D2L: stack.pushLong((long) stack.popDouble()); break;
+			case Const.D2F: stack.pushFloat((float) stack.popDouble()); break;
+			case Const.I2B: stack.pushInt((byte) stack.popInt()); break;
+			case Const.I2C: stack.pushInt((char) stack.popInt()); break;
+			case Const.I2S: stack.pushInt((short) stack.popInt()); break;
+			default:
+				return false;
+		}
+		return true;
+	}
+
+	public static int branchArity(short opcode)
+	{
+		//number of int operands a conditional branch compares, -1 for the reference comparisons
+		switch (opcode){
+			case Const.IFEQ: case Const.IFNE: case Const.IFLT: case Const.IFGE: case Const.IFGT: case Const.IFLE:
+				return 1;
+			case Const.IF_ICMPEQ: case Const.IF_ICMPNE: case Const.IF_ICMPLT:
+			case Const.IF_ICMPGE: case Const.IF_ICMPGT: case Const.IF_ICMPLE:
+				return 2;
+			default:
+				return -1;
+		}
+	}
+
+	public static boolean branchTaken(short opcode, ConstantStack stack)
+	{
+		//pops the operands of a conditional branch with branchArity() > 0 and tells whether it jumps
+		switch (opcode){
+			case Const.IFEQ: return stack.popInt() == 0;
+			case Const.IFNE: return stack.popInt() != 0;
+			case Const.IFLT: return stack.popInt() < 0;
+			case Const.IFGE: return stack.popInt() >= 0;
+			case Const.IFGT: return stack.popInt() > 0;
+			case Const.IFLE: return stack.popInt() <= 0;
+			case Const.IF_ICMPEQ: { int b = stack.popInt(); return stack.popInt() == b; }
+			case Const.IF_ICMPNE: { int b = stack.popInt(); return stack.popInt() != b; }
+			case Const.IF_ICMPLT: { int b = stack.popInt(); return stack.popInt() < b; }
+			case Const.IF_ICMPGE: { int b = stack.popInt(); return stack.popInt() >= b; }
+			case Const.IF_ICMPGT: { int b = stack.popInt(); return stack.popInt() > b; }
+			case Const.IF_ICMPLE: { int b = stack.popInt(); return stack.popInt() <= b; }
+			default:
+				throw new IllegalArgumentException("Not an int branch: " + Const.getOpcodeName(opcode));
+		}
+	}
+
+	private static int compare(double a, double b, int nanResult)
+	{
+		if (a > b){
+			return 1;
+		} else if (a < b){
+			return -1;
+		} else if (a == b){
+			return 0;
+			//also 0.0 against -0.0
+		}
+		return nanResult;
+	}
+}
@@ -0,0 +1,201 @@
+package comp0012.main;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+//Runs the folder on application classes while they are loaded.
+//Package it with "Premain-Class: comp0012.main.FolderAgent" and BCEL on its Class-Path, then start with
+//  java -javaagent:folder-agent.jar=include=com.acme,exclude=com.acme.gen,budgetMs=500 ...
+//include and exclude take package prefixes separated by ':', nothing is included means everything is.
+//budgetMs is how long a class may take to fold once a worker picked it up, it waits as long for a worker.
+//Classes the folder cannot write back unchanged in behaviour are left alone, see ConstantFolder.canOptimize.
+//Folding costs a few milliseconds per class on top of loading it, so the agent is for programs that run long
+//enough to win that back, a short one mostly starts slower.
+public class FolderAgent implements ClassFileTransformer
+{
+	static final String[] ALWAYS_EXCLUDED = {"java/", "javax/", "jdk/", "sun/", "com/sun/", "org/apache/bcel/", "comp0012/main/"};
+	//the JDK, BCEL and the folder itself are never touched, the latter two would transform themselves while folding
+	static final int WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	ArrayList<String> includes = new ArrayList<>();
+	ArrayList<String> excludes = new ArrayList<>();
+	long budgetMillis = 500;
+	//a cold JVM needs a few hundred milliseconds for its first classes, while BCEL is loaded and compiled
+
+	OptimizedClassCache cache = new OptimizedClassCache(64L << 20);
+	Set<String> failed = Collections.synchronizedSet(new HashSet<>());
+	//keys of classes that timed out or failed, they are loaded unchanged from then on
+
+	ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(WORKERS * 16), r -> {
+		Thread thread = new Thread(r, "constant-folder-agent");
+		thread.setDaemon(true);
+		return thread;
+	});
+	//Cancelling a fold does not stop BCEL, a class over budget keeps its worker until it is done. The pool and
+	//its queue are bounded so such classes cannot pile up threads, once they are full classes load unchanged.
+
+	long optimized = 0;
+	long skipped = 0;
+	long nanosSpent = 0;
+
+	public FolderAgent(String args)
+	{
+		Collections.addAll(excludes, ALWAYS_EXCLUDED);
+		if (args == null || args.isEmpty()){
+			return;
+		}
+		for (String option : args.split(",")){
+			String[] pair = option.split("=", 2);
+			String value = pair.length > 1 ? pair[1] : "";
+			if (pair[0].equals("include")){
+				addPrefixes(includes, value);
+			} else if (pair[0].equals("exclude")){
+				addPrefixes(excludes, value);
+			} else if (pair[0].equals("budgetMs")){
+				budgetMillis = Long.parseLong(value);
+			} else {
+				System.err.println("FolderAgent: unknown option " + option);
+			}
+		}
+	}
+
+	public static void premain(String args, Instrumentation instrumentation)
+	{
+		FolderAgent agent = new FolderAgent(args);
+		agent.warmUp();
+		instrumentation.addTransformer(agent);
+		if (Boolean.getBoolean("comp0012.agent.stats")){
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(agent)));
+		}
+	}
+
+	public static void agentmain(String args, Instrumentation instrumentation)
+	{
+		premain(args, instrumentation);
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer)
+	{
+		//returning null tells the JVM to keep the original bytes, which is the answer to every problem here
+		if (className == null || classBeingRedefined != null || !accepts(className)){
+			return null;
+		}
+		long start = System.nanoTime();
+		String key = OptimizedClassCache.keyFor(classfileBuffer, ConstantFolder.defaultConfigKey());
+		try {
+			if (failed.contains(key)){
+				return null;
+			}
+			byte[] result = cache.get(key);
+			if (result == null){
+				ConstantFolder folder = new ConstantFolder(classfileBuffer);
+				if (!folder.canOptimize()){
+					failed.add(key);
+					count(false, start);
+					return null;
+				}
+				folder.setVerbose(false);
+				CountDownLatch started = new CountDownLatch(1);
+				Future<byte[]> task = workers.submit(() -> {
+					started.countDown();
+					return folder.toByteArray();
+				});
+				try {
+					if (!started.await(budgetMillis, TimeUnit.MILLISECONDS)){
+						task.cancel(false);
+						//every worker is busy, the class may fold fine another time
+						count(false, start);
+						return null;
+					}
+					result = task.get(budgetMillis, TimeUnit.MILLISECONDS);
+				} catch (Exception e) {
+					task.cancel(true);
+					failed.add(key);
+					count(false, start);
+					return null;
+				}
+				cache.put(key, result);
+			}
+			count(true, start);
+			return result;
+		} catch (RejectedExecutionException e) {
+			count(false, start);
+			return null;
+		} catch (RuntimeException e) {
+			failed.add(key);
+			count(false, start);
+			return null;
+		}
+	}
+
+	boolean accepts(String className)
+	{
+		for (String prefix : excludes){
+			if (className.startsWith(prefix)){
+				return false;
+			}
+		}
+		if (includes.isEmpty()){
+			return true;
+		}
+		for (String prefix : includes){
+			if (className.startsWith(prefix)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void warmUp()
+	{
+		//Fold one class in the background while the JVM keeps starting, so BCEL is usually loaded and
+		//compiled by the time the first application class arrives. Failing to fold it is fine, the
+		//classes it needed are loaded either way.
+		workers.submit(() -> {
+			try (InputStream in = FolderAgent.class.getResourceAsStream("FolderAgent.class")) {
+				if (in != null){
+					ConstantFolder.optimizeBytes(in.readAllBytes());
+				}
+			}
+			return null;
+		});
+	}
+
+	private synchronized void count(boolean success, long start)
+	{
+		if (success){
+			optimized++;
+		} else {
+			skipped++;
+		}
+		nanosSpent += System.nanoTime() - start;
+	}
+
+	private static void addPrefixes(ArrayList<String> prefixes, String value)
+	{
+		for (String prefix : value.split(":")){
+			if (!prefix.isEmpty()){
+				prefixes.add(prefix.replace('.', '/'));
+			}
+		}
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "FolderAgent[optimized=" + optimized + ", kept=" + skipped + ", ms=" + nanosSpent / 1000000 + ", " + cache + "]";
+	}
+}
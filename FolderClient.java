@@ -0,0 +1,95 @@
+package comp0012.main;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+//Thin client for FolderDaemon, sends all given classes as one batch.
+//Usage: FolderClient <socket path> <input.class> <output.class> [<input.class> <output.class> ...]
+public class FolderClient
+{
+	SocketChannel channel;
+	DataInputStream in;
+	DataOutputStream out;
+
+	int unchanged = 0;
+
+	public FolderClient(String socketPath) throws IOException
+	{
+		channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+		channel.connect(UnixDomainSocketAddress.of(socketPath));
+		in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+		out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+	}
+
+	public byte[][] optimize(byte[][] classes) throws IOException
+	{
+		//returns the classes in request order, the ones the daemon could not fold come back unchanged
+		out.writeInt(classes.length);
+		for (byte[] bytes : classes){
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		out.flush();
+
+		int count = in.readInt();
+		if (count != classes.length){
+			throw new IOException("Daemon answered " + count + " classes for a batch of " + classes.length);
+		}
+		byte[][] results = new byte[count][];
+		for (int i = 0; i < count; i++){
+			if (in.readByte() == FolderDaemon.STATUS_UNCHANGED){
+				unchanged++;
+			}
+			results[i] = new byte[in.readInt()];
+			in.readFully(results[i]);
+		}
+		return results;
+	}
+
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 3 || args.length % 2 != 1){
+			System.err.println("Usage: FolderClient <socket path> <input.class> <output.class> [<input.class> <output.class> ...]");
+			System.exit(1);
+		}
+		int count = (args.length - 1) / 2;
+		byte[][] classes = new byte[count][];
+		for (int i = 0; i < count; i++){
+			classes[i] = Files.readAllBytes(Paths.get(args[1 + 2 * i]));
+		}
+
+		FolderClient client = new FolderClient(args[0]);
+		byte[][] results;
+		try {
+			results = client.optimize(classes);
+		} finally {
+			client.close();
+		}
+
+		for (int i = 0; i < count; i++){
+			Path output = Paths.get(args[2 + 2 * i]);
+			if (output.getParent() != null){
+				Files.createDirectories(output.getParent());
+			}
+			Files.write(output, results[i]);
+		}
+		if (client.unchanged > 0){
+			System.err.println(client.unchanged + " of " + count + " classes could not be optimised and were copied unchanged");
+		}
+	}
+}
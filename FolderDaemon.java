@@ -0,0 +1,133 @@
+package comp0012.main;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+//Keeps a warmed up folder resident and serves it over a Unix domain socket, see FolderClient.
+//Request:  int count, then count times (int length, class bytes)
+//Response: int count, then count times (byte status, int length, class bytes)
+//status is STATUS_OPTIMIZED or STATUS_UNCHANGED, the latter echoes the input when the class could not be folded
+//or the folder cannot write it back unchanged in behaviour, see ConstantFolder.canOptimize.
+public class FolderDaemon
+{
+	static final byte STATUS_OPTIMIZED = 0;
+	static final byte STATUS_UNCHANGED = 1;
+
+	//a request is rejected above these, protects the daemon from a garbage count or length prefix
+	static final int MAX_CLASS_BYTES = 64 << 20;
+	static final int MAX_BATCH_CLASSES = 1 << 16;
+
+	Path socketPath;
+	BatchOptimizer optimizer = new BatchOptimizer();
+	ExecutorService connections = Executors.newCachedThreadPool();
+
+	public FolderDaemon(String socketPath)
+	{
+		this.socketPath = Paths.get(socketPath);
+		optimizer.setCache(new OptimizedClassCache(256L << 20));
+	}
+
+	public void serve() throws IOException
+	{
+		if (Files.exists(socketPath)){
+			//A socket file left behind by a daemon that was killed would make bind fail. One that still accepts
+			//connections belongs to a running daemon and is left to it.
+			boolean live;
+			try {
+				SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).close();
+				live = true;
+			} catch (ConnectException e) {
+				live = false;
+			}
+			if (live){
+				throw new IOException("A folder daemon is already listening on " + socketPath);
+			}
+			Files.deleteIfExists(socketPath);
+		}
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(UnixDomainSocketAddress.of(socketPath));
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					Files.deleteIfExists(socketPath);
+				} catch (IOException ignored) {
+				}
+			}));
+			System.out.println("Folder daemon listening on " + socketPath);
+
+			while (true){
+				SocketChannel client = server.accept();
+				connections.submit(() -> handle(client));
+			}
+		}
+	}
+
+	private void handle(SocketChannel client)
+	{
+		//a client may send several batches over one connection, it ends when the client closes its side
+		try (SocketChannel channel = client) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			while (true){
+				int count;
+				try {
+					count = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				if (count < 0 || count > MAX_BATCH_CLASSES){
+					throw new IOException("Invalid class count " + count);
+				}
+
+				ArrayList<byte[]> originals = new ArrayList<>();
+				ArrayList<Future<byte[]>> results = new ArrayList<>();
+				for (int i = 0; i < count; i++){
+					int length = in.readInt();
+					if (length < 0 || length > MAX_CLASS_BYTES){
+						throw new IOException("Invalid class length " + length);
+					}
+					byte[] original = new byte[length];
+					in.readFully(original);
+					originals.add(original);
+					results.add(optimizer.pool.submit(() -> optimizer.optimizeClass(original, "<daemon>")));
+				}
+
+				out.writeInt(count);
+				for (int i = 0; i < count; i++){
+					byte[] result = results.get(i).get();
+					out.writeByte(result == originals.get(i) ? STATUS_UNCHANGED : STATUS_OPTIMIZED);
+					out.writeInt(result.length);
+					out.write(result);
+				}
+				out.flush();
+			}
+		} catch (Exception e) {
+			System.err.println("Folder daemon: dropping connection: " + e);
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 1){
+			System.err.println("Usage: FolderDaemon <socket path>");
+			System.exit(1);
+		}
+		new FolderDaemon(args[0]).serve();
+	}
+}
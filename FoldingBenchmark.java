@@ -0,0 +1,218 @@
+package comp0012.main;
+import java.util.Random;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+
+
+//Times the folder on generated methods of growing size.
+//Usage: FoldingBenchmark [stores...], by default 750 1500 3000 6000
+//       FoldingBenchmark dispatch, compares the opcode switch of Evaluator with the old instanceof chain
+public class FoldingBenchmark
+{
+	static final int SLOTS = 64;
+	static final int WARMUP_RUNS = 3;
+	static final int MEASURED_RUNS = 5;
+	static final int DISPATCH_OPS = 1 << 16;
+	static final int DISPATCH_ROUNDS = 200;
+
+	static byte[] storeHeavyClass(int stores)
+	{
+		//one static method computing "v[i] = v[i-1] + c" over a few dozen int locals, every store reads the
+		//previous one, so its value is only known once the earlier loads were replaced and refolded,
+		//which is the worst case for dynamic folding
+		ClassGen cgen = new ClassGen("Bench" + stores, "java.lang.Object", "<generated>", Const.ACC_PUBLIC, null);
+		ConstantPoolGen cpgen = cgen.getConstantPool();
+		InstructionList instList = new InstructionList();
+		instList.append(new ICONST(1));
+		instList.append(new ISTORE(0));
+		for (int i = 1; i < stores; i++){
+			instList.append(new ILOAD((i - 1) % SLOTS));
+			instList.append(new LDC(cpgen.addInteger(i * 7919)));
+			instList.append(new IADD());
+			instList.append(new ISTORE(i % SLOTS));
+		}
+		instList.append(new ILOAD(0));
+		instList.append(new IRETURN());
+
+		MethodGen mg = new MethodGen(Const.ACC_PUBLIC | Const.ACC_STATIC, Type.INT, Type.NO_ARGS, null, "run", cgen.getClassName(), instList, cpgen);
+		mg.setMaxStack();
+		mg.setMaxLocals();
+		cgen.addMethod(mg.getMethod());
+		instList.dispose();
+		return cgen.getJavaClass().getBytes();
+	}
+
+	static double millisToFold(byte[] classBytes)
+	{
+		for (int i = 0; i < WARMUP_RUNS; i++){
+			ConstantFolder.optimizeBytes(classBytes);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASURED_RUNS; i++){
+			ConstantFolder.optimizeBytes(classBytes);
+		}
+		return (System.nanoTime() - start) / 1e6 / MEASURED_RUNS;
+	}
+
+	static Instruction[] arithmeticMix()
+	{
+		//the sixteen operations the instanceof chain handled, in a fixed shuffled order so neither side
+		//benefits from a predictable branch
+		Instruction[] kinds = {new IADD(), new LADD(), new FADD(), new DADD(), new IMUL(), new LMUL(), new FMUL(), new DMUL(),
+				new ISUB(), new LSUB(), new FSUB(), new DSUB(), new IDIV(), new LDIV(), new FDIV(), new DDIV()};
+		Random random = new Random(42);
+		Instruction[] ops = new Instruction[DISPATCH_OPS];
+		for (int i = 0; i < ops.length; i++){
+			ops[i] = kinds[random.nextInt(kinds.length)];
+		}
+		return ops;
+	}
+
+	static byte[] operandTypes(Instruction[] ops)
+	{
+		//worked out once, so the measured loops only differ in how they dispatch
+		byte[] types = new byte[ops.length];
+		for (int i = 0; i < ops.length; i++){
+			Type type = ((ArithmeticInstruction) ops[i]).getType(null);
+			if (type == Type.INT){
+				types[i] = ConstantStack.INT;
+			} else if (type == Type.LONG){
+				types[i] = ConstantStack.LONG;
+			} else if (type == Type.FLOAT){
+				types[i] = ConstantStack.FLOAT;
+			} else {
+				types[i] = ConstantStack.DOUBLE;
+			}
+		}
+		return types;
+	}
+
+	static void pushOperands(byte type, ConstantStack stack)
+	{
+		stack.clear();
+		if (type == ConstantStack.INT){
+			stack.pushInt(7919);
+			stack.pushInt(13);
+		} else if (type == ConstantStack.LONG){
+			stack.pushLong(7919L);
+			stack.pushLong(13L);
+		} else if (type == ConstantStack.FLOAT){
+			stack.pushFloat(7919f);
+			stack.pushFloat(13f);
+		} else {
+			stack.pushDouble(7919d);
+			stack.pushDouble(13d);
+		}
+	}
+
+	static long chainDispatch(Instruction[] ops, byte[] types, ConstantStack stack)
+	{
+		long checksum = 0;
+		for (int i = 0; i < ops.length; i++){
+			pushOperands(types[i], stack);
+			legacyArithOp(ops[i], stack);
+			checksum += stack.popLong();
+		}
+		return checksum;
+	}
+
+	static long switchDispatch(Instruction[] ops, byte[] types, ConstantStack stack)
+	{
+		long checksum = 0;
+		for (int i = 0; i < ops.length; i++){
+			pushOperands(types[i], stack);
+			Evaluator.evaluate(ops[i].getOpcode(), stack);
+			checksum += stack.popLong();
+		}
+		return checksum;
+	}
+
+	static void legacyArithOp(Instruction inst, ConstantStack stack)
+	{
+		//the dispatch doArithOp used before Evaluator, kept only as the baseline of this benchmark
+		if (inst instanceof IADD) {
+			int first = stack.popInt(); stack.pushInt(stack.popInt() + first);
+		} else if (inst instanceof LADD) {
+			long first = stack.popLong(); stack.pushLong(stack.popLong() + first);
+		} else if (inst instanceof FADD) {
+			float first = stack.popFloat(); stack.pushFloat(stack.popFloat() + first);
+		} else if (inst instanceof DADD) {
+			double first = stack.popDouble(); stack.pushDouble(stack.popDouble() + first);
+		} else if (inst instanceof IMUL) {
+			int first = stack.popInt(); stack.pushInt(stack.popInt() * first);
+		} else if (inst instanceof LMUL) {
+			long first = stack.popLong(); stack.pushLong(stack.popLong() * first);
+		} else if (inst instanceof FMUL) {
+			float first = stack.popFloat(); stack.pushFloat(stack.popFloat() * first);
+		} else if (inst instanceof DMUL) {
+			double first = stack.popDouble(); stack.pushDouble(stack.popDouble() * first);
+		} else if (inst instanceof ISUB) {
+			int first = stack.popInt(); stack.pushInt(stack.popInt() - first);
+		} else if (inst instanceof LSUB) {
+			long first = stack.popLong(); stack.pushLong(stack.popLong() - first);
+		} else if (inst instanceof FSUB) {
+			float first = stack.popFloat(); stack.pushFloat(stack.popFloat() - first);
+		} else if (inst instanceof DSUB) {
+			double first = stack.popDouble(); stack.pushDouble(stack.popDouble() - first);
+		} else if (inst instanceof IDIV) {
+			int first = stack.popInt(); stack.pushInt(stack.popInt() / first);
+		} else if (inst instanceof LDIV) {
+			long first = stack.popLong(); stack.pushLong(stack.popLong() / first);
+		} else if (inst instanceof FDIV) {
+			float first = stack.popFloat(); stack.pushFloat(stack.popFloat() / first);
+		} else if (inst instanceof DDIV) {
+			double first = stack.popDouble(); stack.pushDouble(stack.popDouble() / first);
+		}
+	}
+
+	static void dispatch()
+	{
+		//Not JMH, the warm up rounds give the JIT time to compile both loops before the measured ones.
+		//The checksums must match, and keep the loops from being optimized away.
+		Instruction[] ops = arithmeticMix();
+		byte[] types = operandTypes(ops);
+		ConstantStack stack = new ConstantStack();
+		long chainSum = 0;
+		long switchSum = 0;
+		for (int i = 0; i < DISPATCH_ROUNDS; i++){
+			chainSum = chainDispatch(ops, types, stack);
+			switchSum = switchDispatch(ops, types, stack);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < DISPATCH_ROUNDS; i++){
+			chainSum += chainDispatch(ops, types, stack);
+		}
+		double chainNanos = (double) (System.nanoTime() - start) / DISPATCH_ROUNDS / ops.length;
+		start = System.nanoTime();
+		for (int i = 0; i < DISPATCH_ROUNDS; i++){
+			switchSum += switchDispatch(ops, types, stack);
+		}
+		double switchNanos = (double) (System.nanoTime() - start) / DISPATCH_ROUNDS / ops.length;
+		if (chainSum != switchSum){
+			throw new IllegalStateException("Evaluator and the instanceof chain disagree");
+		}
+		System.out.println("dispatch\tns/op");
+		System.out.printf("instanceof\t%.2f%n", chainNanos);
+		System.out.printf("opcode\t%.2f%n", switchNanos);
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length == 1 && args[0].equals("dispatch")){
+			dispatch();
+			return;
+		}
+		int[] sizes = {750, 1500, 3000, 6000};
+		if (args.length > 0){
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++){
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		System.out.println("stores\tms/class");
+		for (int stores : sizes){
+			System.out.printf("%d\t%.1f%n", stores, millisToFold(storeHeavyClass(stores)));
+		}
+	}
+}
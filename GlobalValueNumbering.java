@@ -0,0 +1,402 @@
+package comp0012.main;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantDouble;
+import org.apache.bcel.classfile.ConstantFloat;
+import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantLong;
+import org.apache.bcel.classfile.ConstantString;
+import org.apache.bcel.generic.*;
+
+
+//Value numbering of pure expressions, so a repeated a*b or arr.length is computed once.
+//Every block is run on a stack of value numbers: constants and loads are the leaves, and an arithmetic,
+//compare or conversion instruction or an ARRAYLENGTH gets a number made of its opcode and the numbers of
+//its operands. A load is numbered by the slot and the stores to it seen so far, so numbers inside a block
+//follow the local variables as they change.
+//
+//Expressions whose loads all read stable slots (never written, or written once outside any cycle) have the
+//same value wherever they run, these are also reused in the blocks the block computing them dominates,
+//walking the dominator tree. Blocks that can throw into a handler do not hand their values down, the
+//handler may start before the value was computed.
+//
+//When an expression is found a second time its first occurrence is followed by DUP and a store into a
+//fresh local, and the instructions of the second one are replaced by a load of that local. Only whole
+//expressions are replaced (contiguous instructions nothing jumps into), and only ones with at least one
+//operation, reloading a constant or a local from another local gains nothing.
+public class GlobalValueNumbering
+{
+	MethodGen mg;
+	InstructionList instList;
+	ConstantPoolGen cpgen;
+
+	ControlFlowGraph cfg;
+	InstructionHandle[] storeOf;
+	boolean[] changing;
+	//a slot is stable unless it is written more than once, an argument that is written, or written in a cycle
+	int argumentSlots;
+	int nextSlot;
+
+	HashMap<String, Available> available = new HashMap<>();
+	int reused = 0;
+
+	public GlobalValueNumbering(MethodGen mg, ConstantPoolGen cpgen)
+	{
+		this.mg = mg;
+		this.instList = mg.getInstructionList();
+		this.cpgen = cpgen;
+	}
+
+	public int run()
+	{
+		//returns the number of expressions replaced by a load
+		if (instList.isEmpty()){
+			return 0;
+		}
+		cfg = new ControlFlowGraph(mg);
+		argumentSlots = mg.isStatic() ? 0 : 1;
+		for (Type type : mg.getArgumentTypes()){
+			argumentSlots += type.getSize();
+		}
+		nextSlot = Math.max(Math.max(LocalLattice.slotsUsedBy(instList), argumentSlots), mg.getMaxLocals());
+		findStableSlots();
+
+		//walk the dominator tree depth first, the values of a block stay available for its subtree
+		IdentityHashMap<ControlFlowGraph.BasicBlock, List<ControlFlowGraph.BasicBlock>> children = new IdentityHashMap<>();
+		for (ControlFlowGraph.BasicBlock block : cfg.getReversePostOrder()){
+			if (block.getDominator() != null){
+				children.computeIfAbsent(block.getDominator(), b -> new ArrayList<>()).add(block);
+			}
+		}
+		visit(cfg.getEntry(), children);
+		return reused;
+	}
+
+	public int getReused()
+	{
+		return reused;
+	}
+
+	private void visit(ControlFlowGraph.BasicBlock root, IdentityHashMap<ControlFlowGraph.BasicBlock, List<ControlFlowGraph.BasicBlock>> children)
+	{
+		//iterative, a long method has a deep dominator tree
+		ArrayDeque<ControlFlowGraph.BasicBlock> pending = new ArrayDeque<>();
+		ArrayDeque<List<String>> published = new ArrayDeque<>();
+		ArrayDeque<ControlFlowGraph.BasicBlock> path = new ArrayDeque<>();
+		pending.push(root);
+		while (!pending.isEmpty()){
+			ControlFlowGraph.BasicBlock block = pending.pop();
+			while (!path.isEmpty() && !dominates(path.peek(), block)){
+				path.pop();
+				for (String key : published.pop()){
+					available.remove(key);
+				}
+			}
+			List<String> keys = numberBlock(block);
+			if (!block.getExceptionSuccessors().isEmpty()){
+				for (String key : keys){
+					available.remove(key);
+				}
+				keys.clear();
+			}
+			path.push(block);
+			published.push(keys);
+			for (ControlFlowGraph.BasicBlock child : children.getOrDefault(block, new ArrayList<>())){
+				pending.push(child);
+			}
+		}
+		available.clear();
+	}
+
+	private boolean dominates(ControlFlowGraph.BasicBlock a, ControlFlowGraph.BasicBlock b)
+	{
+		for (ControlFlowGraph.BasicBlock block = b.getDominator(); block != null; block = block.getDominator()){
+			if (block == a){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void findStableSlots()
+	{
+		storeOf = new InstructionHandle[nextSlot];
+		changing = new boolean[nextSlot];
+		boolean[] cyclic = findCyclicBlocks();
+		for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()){
+			Instruction inst = handle.getInstruction();
+			if (inst instanceof StoreInstruction){
+				int slot = ((StoreInstruction) inst).getIndex();
+				int size = ((StoreInstruction) inst).getType(cpgen).getSize();
+				boolean repeats = cyclic[cfg.blockOf(handle).getIndex()];
+				for (int word = slot; word < slot + size; word++){
+					changing[word] |= storeOf[word] != null || repeats || word < argumentSlots;
+					storeOf[word] = handle;
+				}
+			} else if (inst instanceof IINC || inst instanceof RET){
+				changing[((IndexedInstruction) inst).getIndex()] = true;
+			}
+		}
+	}
+
+	private boolean[] findCyclicBlocks()
+	{
+		//The blocks that can reach themselves, by index, found once for the whole method. In reducible code
+		//every cycle lies in a natural loop. An edge back to a block that does not dominate its source makes the
+		//code irreducible, then every block is taken to be on a cycle. So are the unreachable blocks.
+		List<ControlFlowGraph.BasicBlock> order = cfg.getReversePostOrder();
+		int[] position = new int[cfg.getBlocks().size()];
+		for (int i = 0; i < order.size(); i++){
+			position[order.get(i).getIndex()] = i;
+		}
+		boolean[] cyclic = new boolean[position.length];
+		for (ControlFlowGraph.Loop loop : cfg.getLoops()){
+			for (ControlFlowGraph.BasicBlock block : loop.getBlocks()){
+				cyclic[block.getIndex()] = true;
+			}
+		}
+		for (ControlFlowGraph.BasicBlock block : order){
+			for (List<ControlFlowGraph.BasicBlock> edges : List.of(block.getSuccessors(), block.getExceptionSuccessors())){
+				for (ControlFlowGraph.BasicBlock successor : edges){
+					if (position[successor.getIndex()] <= position[block.getIndex()] && !cfg.dominates(successor, block)){
+						Arrays.fill(cyclic, true);
+						return cyclic;
+					}
+				}
+			}
+		}
+		for (ControlFlowGraph.BasicBlock block : cfg.getBlocks()){
+			cyclic[block.getIndex()] |= !block.isReachable();
+		}
+		return cyclic;
+	}
+
+	private boolean isStable(int slot, int size)
+	{
+		for (int word = slot; word < slot + size; word++){
+			if (word >= changing.length || changing[word] || storeOf[word] != storeOf[slot]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private List<String> numberBlock(ControlFlowGraph.BasicBlock block)
+	{
+		//returns the keys of the stable expressions the block made available
+		ArrayList<String> published = new ArrayList<>();
+		ArrayList<String> local = new ArrayList<>();
+		HashMap<Integer, Integer> versions = new HashMap<>();
+		ArrayList<Value> stack = new ArrayList<>();
+		for (InstructionHandle handle : block.getHandles()){
+			Instruction inst = handle.getInstruction();
+			short opcode = inst.getOpcode();
+			if (isConstant(inst)){
+				Type type = ((TypedInstruction) inst).getType(cpgen);
+				Object value = inst instanceof LDC ? ((LDC) inst).getValue(cpgen)
+						: inst instanceof LDC2_W ? ((LDC2_W) inst).getValue(cpgen) : ((ConstantPushInstruction) inst).getValue();
+				stack.add(new Value(type.getSignature() + value, true, handle, handle, type.getSize()));
+			} else if (inst instanceof LoadInstruction){
+				int slot = ((LoadInstruction) inst).getIndex();
+				Type type = ((LoadInstruction) inst).getType(cpgen);
+				boolean stable = isStable(slot, type.getSize());
+				String key = stable ? "s" + slot + type.getSignature()
+						: "v" + slot + type.getSignature() + "#" + versions.getOrDefault(slot, 0);
+				stack.add(new Value(key, stable, handle, handle, type.getSize()));
+			} else if (Evaluator.arity(opcode) >= 0 || opcode == Const.ARRAYLENGTH){
+				int arity = opcode == Const.ARRAYLENGTH ? 1 : Evaluator.arity(opcode);
+				Value[] operands = new Value[arity];
+				for (int i = arity - 1; i >= 0; i--){
+					operands[i] = pop(stack);
+				}
+				Value value = combine(handle, operands);
+				stack.add(value);
+				if (value.key != null){
+					Available first = available.get(value.key);
+					if (first != null){
+						if (value.replaceable){
+							replace(value, first);
+						}
+					} else {
+						available.put(value.key, new Available(handle, resultType(inst)));
+						(value.stable ? published : local).add(value.key);
+					}
+				}
+			} else {
+				if (inst instanceof StoreInstruction || inst instanceof IINC){
+					int slot = ((IndexedInstruction) inst).getIndex();
+					int size = inst instanceof StoreInstruction ? ((StoreInstruction) inst).getType(cpgen).getSize() : 1;
+					for (int word = slot; word < slot + size; word++){
+						versions.merge(word, 1, Integer::sum);
+					}
+				}
+				simulate(inst, stack);
+			}
+		}
+		for (String key : local){
+			available.remove(key);
+			//block local values die with the block
+		}
+		return published;
+	}
+
+	private boolean isConstant(Instruction inst)
+	{
+		if (inst instanceof LDC || inst instanceof LDC2_W){
+			Constant constant = cpgen.getConstant(((CPInstruction) inst).getIndex());
+			return constant instanceof ConstantInteger || constant instanceof ConstantFloat || constant instanceof ConstantString
+					|| constant instanceof ConstantLong || constant instanceof ConstantDouble;
+			//a class or method handle is left to simulate()
+		}
+		return inst instanceof ConstantPushInstruction;
+	}
+
+	private Value combine(InstructionHandle handle, Value[] operands)
+	{
+		//the number of an operation on the operands, replaceable if they are contiguous and end right before it
+		StringBuilder key = new StringBuilder(Const.getOpcodeName(handle.getInstruction().getOpcode())).append('(');
+		boolean stable = true;
+		boolean replaceable = true;
+		InstructionHandle expected = handle;
+		for (int i = operands.length - 1; i >= 0; i--){
+			Value operand = operands[i];
+			if (operand.key == null){
+				return new Value(null, false, null, handle, handle.getInstruction().produceStack(cpgen));
+			}
+			stable &= operand.stable;
+			replaceable &= operand.end != null && operand.end.getNext() == expected && operand.start != null;
+			expected = operand.start;
+		}
+		for (Value operand : operands){
+			key.append(operand.key).append(',');
+		}
+		key.append(')');
+		int words = handle.getInstruction().produceStack(cpgen);
+		if (!replaceable){
+			return new Value(key.toString(), stable, null, handle, words);
+		}
+		for (InstructionHandle inside = operands[0].start.getNext(); inside != handle.getNext(); inside = inside.getNext()){
+			if (inside.hasTargeters()){
+				return new Value(key.toString(), stable, null, handle, words);
+			}
+		}
+		Value value = new Value(key.toString(), stable, operands[0].start, handle, words);
+		value.replaceable = true;
+		return value;
+	}
+
+	private void replace(Value value, Available first)
+	{
+		//load the value the first occurrence saved instead of computing it again
+		if (first.slot < 0){
+			first.slot = nextSlot;
+			nextSlot += first.type.getSize();
+			InstructionList save = new InstructionList();
+			save.append(first.type.getSize() == 2 ? InstructionConst.DUP2 : InstructionConst.DUP);
+			save.append(InstructionFactory.createStore(first.type, first.slot));
+			instList.append(first.end, save);
+		}
+		value.start.setInstruction(InstructionFactory.createLoad(first.type, first.slot));
+		if (value.start != value.end){
+			try {
+				instList.delete(value.start.getNext(), value.end);
+			} catch (TargetLostException e) {
+				throw new IllegalStateException("Jump into a replaced expression", e);
+				//combine() only marks expressions nothing jumps into as replaceable
+			}
+		}
+		value.end = value.start;
+		reused++;
+	}
+
+	private Value pop(ArrayList<Value> stack)
+	{
+		if (stack.isEmpty()){
+			return new Value(null, false, null, null, 1);
+			//a value that was on the stack when the block started
+		}
+		return stack.remove(stack.size() - 1);
+	}
+
+	private void simulate(Instruction inst, ArrayList<Value> stack)
+	{
+		//any other instruction, DUP and friends copy value numbers, the rest produce unknown values
+		short opcode = inst.getOpcode();
+		if (opcode == Const.DUP && !stack.isEmpty() && stack.get(stack.size() - 1).words == 1){
+			Value top = stack.get(stack.size() - 1);
+			stack.add(new Value(top.key, top.stable, null, null, 1));
+			return;
+		} else if (opcode == Const.DUP2 && !stack.isEmpty() && stack.get(stack.size() - 1).words == 2){
+			Value top = stack.get(stack.size() - 1);
+			stack.add(new Value(top.key, top.stable, null, null, 2));
+			return;
+		}
+		int consumed = inst.consumeStack(cpgen);
+		while (consumed > 0){
+			consumed -= pop(stack).words;
+		}
+		int produced = inst.produceStack(cpgen);
+		if (inst instanceof StackInstruction){
+			while (produced > 0){
+				stack.add(new Value(null, false, null, null, 1));
+				produced--;
+				//only the word count matters for what follows
+			}
+		} else if (produced > 0){
+			stack.add(new Value(null, false, null, null, produced));
+		}
+	}
+
+	private Type resultType(Instruction inst)
+	{
+		switch (inst.getOpcode()){
+			case Const.LCMP: case Const.FCMPL: case Const.FCMPG: case Const.DCMPL: case Const.DCMPG: case Const.ARRAYLENGTH:
+				return Type.INT;
+			default:
+				return ((TypedInstruction) inst).getType(cpgen);
+				//the result type of arithmetic and the target type of conversions
+		}
+	}
+
+	//A value on the simulated stack, with the instructions computing it if they are contiguous
+	static class Value
+	{
+		final String key;
+		//null if the value is not known
+		final boolean stable;
+		InstructionHandle start;
+		InstructionHandle end;
+		final int words;
+		boolean replaceable = false;
+
+		Value(String key, boolean stable, InstructionHandle start, InstructionHandle end, int words)
+		{
+			this.key = key;
+			this.stable = stable;
+			this.start = start;
+			this.end = end;
+			this.words = words;
+		}
+	}
+
+	//The first occurrence of an expression, and the local it is saved in once it is needed again
+	static class Available
+	{
+		final InstructionHandle end;
+		final Type type;
+		int slot = -1;
+
+		Available(InstructionHandle end, Type type)
+		{
+			this.end = end;
+			this.type = type;
+		}
+	}
+}
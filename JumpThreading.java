@@ -0,0 +1,223 @@
+package comp0012.main;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.bcel.generic.*;
+
+
+//Jump threading, taking the jumps folding leaves behind out of the path of execution.
+//A branch to a GOTO is retargeted to where the chain of GOTOs ends, a GOTO to a return becomes the return.
+//A GOTO to the instruction right after it is removed, a conditional jump there only pops its operands.
+//  if X goto L1; goto L2; L1:
+//becomes "if !X goto L2; L1:", so the common path falls through instead of taking two jumps. Negating the
+//IFxx after FCMPL or DCMPG is exact, NaN is decided by the compare, which stays as it is.
+//The GOTOs nothing jumps to any more are removed as unreachable, and everything repeats until it is stable,
+//since removing code can leave further jumps to the next instruction.
+public class JumpThreading
+{
+	MethodGen mg;
+	InstructionList instList;
+	ConstantPoolGen cpgen;
+
+	Set<InstructionHandle> protectedHandles;
+	//covered by an exception handler
+	int retargeted = 0;
+	int removedJumps = 0;
+	int invertedBranches = 0;
+
+	public JumpThreading(MethodGen mg, ConstantPoolGen cpgen)
+	{
+		this.mg = mg;
+		this.instList = mg.getInstructionList();
+		this.cpgen = cpgen;
+	}
+
+	public int run()
+	{
+		//returns the number of jumps changed or removed
+		if (instList.isEmpty()){
+			return 0;
+		}
+		boolean changed = true;
+		while (changed){
+			findProtectedHandles();
+			changed = retargetBranches();
+			changed |= removeJumpsToNext();
+			changed |= invertBranches();
+			changed |= removeJumpsToNext();
+			if (changed){
+				new DeadCodeElimination(mg, cpgen).removeUnreachableBlocks();
+			}
+		}
+		return retargeted + removedJumps + invertedBranches;
+	}
+
+	public int getRetargeted()
+	{
+		return retargeted;
+	}
+
+	public int getRemovedJumps()
+	{
+		return removedJumps;
+	}
+
+	public int getInvertedBranches()
+	{
+		return invertedBranches;
+	}
+
+	private void findProtectedHandles()
+	{
+		protectedHandles = new HashSet<>();
+		for (CodeExceptionGen handler : mg.getExceptionHandlers()){
+			for (InstructionHandle handle = handler.getStartPC(); handle != null; handle = handle.getNext()){
+				protectedHandles.add(handle);
+				if (handle == handler.getEndPC()){
+					break;
+				}
+			}
+		}
+	}
+
+	private boolean retargetBranches()
+	{
+		boolean changed = false;
+		for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()){
+			Instruction inst = handle.getInstruction();
+			if (inst instanceof Select){
+				Select select = (Select) inst;
+				InstructionHandle[] targets = select.getTargets();
+				for (int i = 0; i < targets.length; i++){
+					InstructionHandle destination = destinationOf(targets[i]);
+					if (destination != targets[i]){
+						select.setTarget(i, destination);
+						retargeted++;
+						changed = true;
+					}
+				}
+				changed |= retarget(select);
+			} else if (inst instanceof IfInstruction){
+				changed |= retarget((BranchInstruction) inst);
+			} else if (inst instanceof GotoInstruction){
+				changed |= retarget((BranchInstruction) inst);
+				InstructionHandle destination = ((GotoInstruction) inst).getTarget();
+				if (destination.getInstruction() instanceof ReturnInstruction && !protectedHandles.contains(handle)
+						&& !protectedHandles.contains(destination)){
+					//a return can throw when the monitors are off, it stays outside of the handlers it was outside of
+					handle = replace(handle, destination.getInstruction().copy());
+					changed = true;
+				}
+			}
+			//JSR is left alone, RET has to come back to the instruction after it
+		}
+		return changed;
+	}
+
+	private boolean retarget(BranchInstruction branch)
+	{
+		InstructionHandle destination = destinationOf(branch.getTarget());
+		if (destination == branch.getTarget()){
+			return false;
+		}
+		branch.setTarget(destination);
+		retargeted++;
+		return true;
+	}
+
+	private InstructionHandle destinationOf(InstructionHandle target)
+	{
+		//where a jump to target ends up after the GOTOs, a cycle of GOTOs is left where it is
+		HashSet<InstructionHandle> seen = new HashSet<>();
+		while (target.getInstruction() instanceof GotoInstruction && seen.add(target)){
+			target = ((GotoInstruction) target.getInstruction()).getTarget();
+		}
+		return target;
+	}
+
+	private boolean removeJumpsToNext()
+	{
+		boolean changed = false;
+		InstructionHandle handle = instList.getStart();
+		while (handle != null){
+			InstructionHandle next = handle.getNext();
+			Instruction inst = handle.getInstruction();
+			if ((inst instanceof GotoInstruction || inst instanceof IfInstruction) && ((BranchInstruction) inst).getTarget() == next){
+				if (inst instanceof GotoInstruction){
+					delete(handle);
+				} else {
+					replace(handle, inst.consumeStack(cpgen) == 2 ? InstructionConst.POP2 : InstructionConst.POP);
+					//both ways lead to the same place, only the operands are left to drop
+				}
+				removedJumps++;
+				changed = true;
+			}
+			handle = next;
+		}
+		return changed;
+	}
+
+	private boolean invertBranches()
+	{
+		//if X goto L1; goto L2; L1: becomes if !X goto L2; L1:
+		boolean changed = false;
+		for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()){
+			InstructionHandle jump = handle.getNext();
+			if (!(handle.getInstruction() instanceof IfInstruction) || jump == null || jump.hasTargeters()
+					|| !(jump.getInstruction() instanceof GotoInstruction)){
+				continue;
+			}
+			IfInstruction branch = (IfInstruction) handle.getInstruction();
+			if (branch.getTarget() != jump.getNext()){
+				continue;
+			}
+			IfInstruction negated = branch.negate();
+			negated.setTarget(((GotoInstruction) jump.getInstruction()).getTarget());
+			handle.setInstruction(negated);
+			delete(jump);
+			invertedBranches++;
+			changed = true;
+		}
+		return changed;
+	}
+
+	private InstructionHandle replace(InstructionHandle handle, Instruction inst)
+	{
+		//a branch handle only takes branch instructions, put inst in a new handle that takes over the jumps
+		InstructionHandle replacement = instList.insert(handle, inst);
+		for (InstructionTargeter targeter : handle.getTargeters()){
+			targeter.updateTarget(handle, replacement);
+		}
+		delete(handle);
+		return replacement;
+	}
+
+	private void delete(InstructionHandle handle)
+	{
+		//the handle leaves the stack alone, whatever jumped to it can jump to the next instruction
+		InstructionHandle next = handle.getNext();
+		InstructionHandle prev = handle.getPrev();
+		for (InstructionTargeter targeter : handle.getTargeters()){
+			if (targeter instanceof CodeExceptionGen){
+				CodeExceptionGen handler = (CodeExceptionGen) targeter;
+				if (handler.getStartPC() == handle && handler.getEndPC() == handle){
+					mg.removeExceptionHandler(handler);
+					handler.getHandlerPC().removeTargeter(handler);
+					handle.removeTargeter(handler);
+					//a jump cannot throw, the handler protected nothing
+				} else if (handler.getEndPC() == handle){
+					handler.setEndPC(prev);
+				}
+			}
+		}
+		try {
+			instList.delete(handle);
+		} catch (TargetLostException e) {
+			for (InstructionHandle target : e.getTargets()){
+				for (InstructionTargeter targeter : target.getTargeters()){
+					targeter.updateTarget(target, next);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package comp0012.main;
+import java.util.Arrays;
+
+import org.apache.bcel.generic.*;
+
+
+//What is known about each local variable slot at one point of a method.
+//A slot is UNKNOWN until a store is seen, CONSTANT while it is known to hold a single value and OVERDEFINED
+//once it may hold more than one. Slots are dense small ints below max_locals, so the state lives in flat
+//primitive arrays indexed by slot, which makes a copy per basic block cheap. Values use the same
+//tags and primitive slots as ConstantStack.
+public class LocalLattice
+{
+	public static final byte UNKNOWN = 0;
+	public static final byte CONSTANT = 1;
+	public static final byte OVERDEFINED = 2;
+
+	byte[] states;
+	byte[] tags;
+	long[] longs;
+	double[] doubles;
+
+	public LocalLattice(int maxLocals)
+	{
+		states = new byte[maxLocals];
+		tags = new byte[maxLocals];
+		longs = new long[maxLocals];
+		doubles = new double[maxLocals];
+	}
+
+	public static LocalLattice forMethod(InstructionList instList)
+	{
+		//sized from the highest slot the code touches, plus room for the second word of a long or double
+		return new LocalLattice(slotsUsedBy(instList));
+	}
+
+	public static int slotsUsedBy(InstructionList instList)
+	{
+		int slots = 0;
+		for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()){
+			if (handle.getInstruction() instanceof LocalVariableInstruction){
+				slots = Math.max(slots, ((LocalVariableInstruction) handle.getInstruction()).getIndex() + 2);
+			}
+		}
+		return slots;
+	}
+
+	public int size()
+	{
+		return states.length;
+	}
+
+	public byte getState(int slot)
+	{
+		return states[slot];
+	}
+
+	public boolean isConstant(int slot)
+	{
+		return states[slot] == CONSTANT;
+	}
+
+	public boolean isOverdefined(int slot)
+	{
+		return states[slot] == OVERDEFINED;
+	}
+
+	public byte getType(int slot)
+	{
+		return tags[slot];
+	}
+
+	public int getInt(int slot)
+	{
+		return (int) longs[slot];
+	}
+
+	public long getLong(int slot)
+	{
+		return longs[slot];
+	}
+
+	public float getFloat(int slot)
+	{
+		return (float) doubles[slot];
+	}
+
+	public double getDouble(int slot)
+	{
+		return doubles[slot];
+	}
+
+	public void setInt(int slot, int value)
+	{
+		set(slot, ConstantStack.INT, value, 0);
+	}
+
+	public void setLong(int slot, long value)
+	{
+		set(slot, ConstantStack.LONG, value, 0);
+	}
+
+	public void setFloat(int slot, float value)
+	{
+		set(slot, ConstantStack.FLOAT, 0, value);
+	}
+
+	public void setDouble(int slot, double value)
+	{
+		set(slot, ConstantStack.DOUBLE, 0, value);
+	}
+
+	public void setUnknown(int slot)
+	{
+		states[slot] = UNKNOWN;
+	}
+
+	public void setOverdefined(int slot)
+	{
+		states[slot] = OVERDEFINED;
+	}
+
+	public void setAllOverdefined()
+	{
+		Arrays.fill(states, OVERDEFINED);
+	}
+
+	public void store(int slot, ConstantStack stack)
+	{
+		//pops the top of the stack into the slot, like a store instruction
+		switch (stack.peekType()){
+			case ConstantStack.UNKNOWN:
+			case ConstantStack.UNKNOWN_WIDE:
+				boolean wide = stack.peekType() == ConstantStack.UNKNOWN_WIDE;
+				stack.pop();
+				states[slot] = OVERDEFINED;
+				if (wide && slot + 1 < states.length){
+					states[slot + 1] = OVERDEFINED;
+				}
+				break;
+			case ConstantStack.INT:
+				setInt(slot, stack.popInt());
+				break;
+			case ConstantStack.LONG:
+				setLong(slot, stack.popLong());
+				break;
+			case ConstantStack.FLOAT:
+				setFloat(slot, stack.popFloat());
+				break;
+			default:
+				setDouble(slot, stack.popDouble());
+		}
+	}
+
+	public boolean load(int slot, ConstantStack stack)
+	{
+		//pushes the value of the slot, like a load instruction, false if the slot is not a constant
+		if (states[slot] != CONSTANT){
+			return false;
+		}
+		switch (tags[slot]){
+			case ConstantStack.INT:
+				stack.pushInt(getInt(slot));
+				break;
+			case ConstantStack.LONG:
+				stack.pushLong(getLong(slot));
+				break;
+			case ConstantStack.FLOAT:
+				stack.pushFloat(getFloat(slot));
+				break;
+			default:
+				stack.pushDouble(getDouble(slot));
+		}
+		return true;
+	}
+
+	public Instruction loadInstruction(int slot, ConstantPoolGen cpgen)
+	{
+		//an instruction pushing the constant in the slot, null if it does not hold one
+		if (states[slot] != CONSTANT){
+			return null;
+		}
+		return ConstantStack.constantInstruction(tags[slot], longs[slot], doubles[slot], cpgen);
+	}
+
+	public LocalLattice copy()
+	{
+		LocalLattice copy = new LocalLattice(states.length);
+		copy.copyFrom(this);
+		return copy;
+	}
+
+	public void copyFrom(LocalLattice other)
+	{
+		System.arraycopy(other.states, 0, states, 0, states.length);
+		System.arraycopy(other.tags, 0, tags, 0, tags.length);
+		System.arraycopy(other.longs, 0, longs, 0, longs.length);
+		System.arraycopy(other.doubles, 0, doubles, 0, doubles.length);
+	}
+
+	public boolean merge(LocalLattice other)
+	{
+		//Meet with the state flowing in from another predecessor, returns whether anything changed.
+		//A slot keeps its constant only if both sides agree on the type and the exact bits, so 0.0 and -0.0
+		//stay apart and NaN agrees with itself.
+		boolean changed = false;
+		for (int slot = 0; slot < states.length; slot++){
+			byte theirs = other.states[slot];
+			if (theirs == UNKNOWN || states[slot] == OVERDEFINED){
+				continue;
+			}
+			if (states[slot] == UNKNOWN){
+				states[slot] = theirs;
+				tags[slot] = other.tags[slot];
+				longs[slot] = other.longs[slot];
+				doubles[slot] = other.doubles[slot];
+				changed = true;
+			} else if (theirs == OVERDEFINED || !sameValue(other, slot)){
+				states[slot] = OVERDEFINED;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private boolean sameValue(LocalLattice other, int slot)
+	{
+		if (tags[slot] != other.tags[slot]){
+			return false;
+		}
+		if (ConstantStack.isIntegral(tags[slot])){
+			return longs[slot] == other.longs[slot];
+		}
+		return Double.doubleToRawLongBits(doubles[slot]) == Double.doubleToRawLongBits(other.doubles[slot]);
+	}
+
+	private void set(int slot, byte tag, long longValue, double doubleValue)
+	{
+		states[slot] = CONSTANT;
+		tags[slot] = tag;
+		longs[slot] = longValue;
+		doubles[slot] = doubleValue;
+		if (ConstantStack.isWide(tag) && slot + 1 < states.length){
+			states[slot + 1] = OVERDEFINED;
+			//the second word of a long or double, it cannot be read on its own
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package comp0012.main;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.bcel.generic.*;
+
+
+//Unrolls counted loops whose number of iterations is known, in the shape javac gives a for loop:
+//  iconst a; istore i
+//  head: iload i; push b; if_icmpXX exit       the test may also compare to 0 or have the constant first
+//        body                                  anything that does not write i
+//        iinc i c
+//        goto head
+//  exit:
+//The number of iterations comes from running the test on a, a + c, a + 2c, ... with int overflow, so any
+//comparison works. A loop running at most MAX_FULL_TRIPS times is replaced by that many copies of its body
+//and the loads of i in them become constants the next time the method is folded. A longer loop keeps its
+//test but gets factor copies of the body per iteration, the remainder is peeled off in front of it, so the
+//test only runs every factor iterations and still fails exactly where it did.
+//
+//Jumps inside the body go to the same place in each copy, break, return and throw keep leaving the loop.
+//Loops entered other than through the test, with more than one back edge, with a continue that skips the
+//increment or with exception handlers are left alone. So are loops whose copies would make the method
+//larger than HotSpot compiles (DontCompileHugeMethods), since that would cost far more than the jumps.
+public class LoopUnrolling
+{
+	public static final int DEFAULT_FACTOR = 4;
+	static final int MAX_FULL_TRIPS = 16;
+	static final int MAX_GROWTH = 1024;
+	//bytes of code the copies of one loop may add
+	static final int MAX_METHOD_BYTES = 8000;
+	static final int MAX_SIMULATED_TRIPS = 1 << 20;
+
+	MethodGen mg;
+	InstructionList instList;
+	ConstantPoolGen cpgen;
+	int factor;
+
+	//the loop being matched or unrolled
+	InstructionHandle header;
+	List<InstructionHandle> testOperands;
+	InstructionHandle test;
+	InstructionHandle increment;
+	InstructionHandle latch;
+	int slot;
+	int start;
+	ConstantStack stack = new ConstantStack(2);
+
+	int fullyUnrolled = 0;
+	int partiallyUnrolled = 0;
+
+	public LoopUnrolling(MethodGen mg, ConstantPoolGen cpgen, int factor)
+	{
+		this.mg = mg;
+		this.instList = mg.getInstructionList();
+		this.cpgen = cpgen;
+		this.factor = factor;
+	}
+
+	public int run()
+	{
+		//returns the number of loops unrolled
+		if (instList.isEmpty() || mg.getExceptionHandlers().length > 0){
+			return 0;
+		}
+		boolean changed = true;
+		while (changed){
+			changed = false;
+			ControlFlowGraph cfg = new ControlFlowGraph(mg);
+			List<ControlFlowGraph.Loop> loops = cfg.getLoops();
+			for (int i = loops.size() - 1; i >= 0 && !changed; i--){
+				changed = unroll(cfg, loops.get(i));
+				//inner loops first, an outer loop may become small enough once they are gone
+			}
+		}
+		return fullyUnrolled + partiallyUnrolled;
+	}
+
+	public int getFullyUnrolled()
+	{
+		return fullyUnrolled;
+	}
+
+	public int getPartiallyUnrolled()
+	{
+		return partiallyUnrolled;
+	}
+
+	private boolean unroll(ControlFlowGraph cfg, ControlFlowGraph.Loop loop)
+	{
+		if (!matchCountedLoop(cfg, loop)){
+			return false;
+		}
+		int trips = tripCount();
+		if (trips < 0){
+			return false;
+		}
+		int bodyBytes = 0;
+		for (InstructionHandle handle = test.getNext(); handle != latch; handle = handle.getNext()){
+			bodyBytes += handle.getInstruction().getLength();
+		}
+		int room = Math.min(MAX_GROWTH, MAX_METHOD_BYTES - instList.getByteCode().length);
+		if (trips <= MAX_FULL_TRIPS && trips * bodyBytes <= room){
+			unrollFully(trips);
+			fullyUnrolled++;
+			return true;
+		}
+		int copies = factor - 1 + trips % factor;
+		if (factor > 1 && trips >= 2 * factor && copies * bodyBytes <= room){
+			unrollPartially(trips);
+			partiallyUnrolled++;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean matchCountedLoop(ControlFlowGraph cfg, ControlFlowGraph.Loop loop)
+	{
+		if (loop.getLatches().size() != 1){
+			return false;
+		}
+		header = loop.getHeader().getStart();
+		test = loop.getHeader().getEnd();
+		latch = loop.getLatches().get(0).getEnd();
+		increment = latch.getPrev();
+		if (!(test.getInstruction() instanceof IfInstruction) || !(latch.getInstruction() instanceof GOTO) || latch.hasTargeters()
+				|| !(increment.getInstruction() instanceof IINC) || loop.contains(cfg.blockOf(((IfInstruction) test.getInstruction()).getTarget()))){
+			return false;
+			//a jump to the GOTO would skip the increment, and the test has to jump out of the loop
+		}
+		slot = ((IINC) increment.getInstruction()).getIndex();
+		for (InstructionTargeter targeter : header.getTargeters()){
+			if (targeter instanceof BranchInstruction && targeter != latch.getInstruction()){
+				return false;
+			}
+		}
+
+		//the test compares i to constants
+		int compared = Evaluator.branchArity(test.getInstruction().getOpcode());
+		testOperands = loop.getHeader().getHandles().subList(0, loop.getHeader().getHandles().size() - 1);
+		if (compared <= 0 || testOperands.size() != compared){
+			return false;
+		}
+		int loads = 0;
+		for (InstructionHandle operand : testOperands){
+			stack.clear();
+			if (isLoadOfCounter(operand.getInstruction())){
+				loads++;
+			} else if (!stack.push(operand.getInstruction(), cpgen) || stack.peekType() != ConstantStack.INT){
+				return false;
+			}
+		}
+		if (loads != 1){
+			return false;
+		}
+
+		//i is set to a constant right before the loop
+		InstructionHandle store = header.getPrev();
+		if (store == null || store.hasTargeters() || !(store.getInstruction() instanceof ISTORE)
+				|| ((ISTORE) store.getInstruction()).getIndex() != slot || store.getPrev() == null){
+			return false;
+		}
+		stack.clear();
+		if (!stack.push(store.getPrev().getInstruction(), cpgen) || stack.peekType() != ConstantStack.INT){
+			return false;
+		}
+		start = stack.popInt();
+
+		//The loop is the code from the test to the GOTO, with the breaks and returns javac puts in between. It
+		//is only entered through the test and only the increment writes i.
+		HashSet<InstructionHandle> range = new HashSet<>();
+		for (InstructionHandle handle = header; ; handle = handle.getNext()){
+			if (handle == null){
+				return false;
+			}
+			range.add(handle);
+			Instruction inst = handle.getInstruction();
+			if (handle != increment && writesCounter(inst) || inst instanceof JsrInstruction || inst instanceof RET){
+				return false;
+			}
+			if (handle == latch){
+				break;
+			}
+		}
+		for (ControlFlowGraph.BasicBlock block : loop.getBlocks()){
+			if (!range.contains(block.getStart())){
+				return false;
+			}
+		}
+		for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()){
+			if (range.contains(handle) || !(handle.getInstruction() instanceof BranchInstruction)){
+				continue;
+			}
+			BranchInstruction branch = (BranchInstruction) handle.getInstruction();
+			if (range.contains(branch.getTarget())){
+				return false;
+			}
+			if (branch instanceof Select){
+				for (InstructionHandle target : ((Select) branch).getTargets()){
+					if (range.contains(target)){
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean isLoadOfCounter(Instruction inst)
+	{
+		return inst instanceof ILOAD && ((ILOAD) inst).getIndex() == slot;
+	}
+
+	private boolean writesCounter(Instruction inst)
+	{
+		if (inst instanceof StoreInstruction){
+			int index = ((StoreInstruction) inst).getIndex();
+			return index == slot || (index == slot - 1 && ((StoreInstruction) inst).getType(cpgen).getSize() == 2);
+		}
+		return inst instanceof IINC && ((IINC) inst).getIndex() == slot;
+	}
+
+	private int tripCount()
+	{
+		//how often the body runs, -1 if that is more than MAX_SIMULATED_TRIPS
+		int counter = start;
+		int step = ((IINC) increment.getInstruction()).getIncrement();
+		for (int trips = 0; trips <= MAX_SIMULATED_TRIPS; trips++){
+			stack.clear();
+			for (InstructionHandle operand : testOperands){
+				if (isLoadOfCounter(operand.getInstruction())){
+					stack.pushInt(counter);
+				} else {
+					stack.push(operand.getInstruction(), cpgen);
+				}
+			}
+			if (Evaluator.branchTaken(test.getInstruction().getOpcode(), stack)){
+				return trips;
+			}
+			counter += step;
+		}
+		return -1;
+	}
+
+	private void unrollFully(int trips)
+	{
+		InstructionHandle exit = ((IfInstruction) test.getInstruction()).getTarget();
+		InstructionHandle first = null;
+		for (int i = 0; i < trips; i++){
+			InstructionHandle copy = copyBody(header);
+			first = first == null ? copy : first;
+		}
+		if (exit != latch.getNext()){
+			InstructionHandle jump = instList.insert(header, new GOTO(exit));
+			first = first == null ? jump : first;
+		}
+		InstructionHandle last = header.getPrev();
+		//the loop is now the code from header to latch, which goes
+		try {
+			instList.delete(header, latch);
+		} catch (TargetLostException e) {
+			for (InstructionHandle target : e.getTargets()){
+				for (InstructionTargeter targeter : target.getTargeters()){
+					if (targeter instanceof LineNumberGen && first != null){
+						targeter.updateTarget(target, first);
+					} else if (targeter instanceof LineNumberGen){
+						mg.removeLineNumber((LineNumberGen) targeter);
+					} else if (targeter instanceof LocalVariableGen){
+						LocalVariableGen variable = (LocalVariableGen) targeter;
+						if (variable.getStart() == target){
+							variable.setStart(first != null ? first : exit);
+						}
+						if (variable.getEnd() == target){
+							variable.setEnd(first != null ? last : exit);
+						}
+					} else {
+						throw new IllegalStateException("Jump into the unrolled loop at " + target);
+					}
+				}
+			}
+		}
+	}
+
+	private void unrollPartially(int trips)
+	{
+		for (int i = 0; i < trips % factor; i++){
+			copyBody(header);
+			//the iterations that do not fill a round, before the test
+		}
+		for (int i = 1; i < factor; i++){
+			copyBody(latch);
+		}
+	}
+
+	private InstructionHandle copyBody(InstructionHandle before)
+	{
+		//Inserts a copy of the body, from the instruction after the test up to the increment, before the given
+		//handle and returns its first handle. Jumps within the body go to the same place in the copy, the
+		//others keep their target.
+		HashMap<InstructionHandle, InstructionHandle> copies = new HashMap<>();
+		ArrayList<BranchInstruction> branches = new ArrayList<>();
+		for (InstructionHandle handle = test.getNext(); ; handle = handle.getNext()){
+			Instruction inst = handle.getInstruction().copy();
+			if (inst instanceof BranchInstruction){
+				copies.put(handle, instList.insert(before, (BranchInstruction) inst));
+				branches.add((BranchInstruction) inst);
+			} else {
+				copies.put(handle, instList.insert(before, inst));
+			}
+			if (handle == increment){
+				break;
+			}
+		}
+		for (BranchInstruction branch : branches){
+			branch.setTarget(copies.getOrDefault(branch.getTarget(), branch.getTarget()));
+			//a cloned branch is not registered with its target yet, setting it does that
+			if (branch instanceof Select){
+				InstructionHandle[] targets = ((Select) branch).getTargets();
+				for (int i = 0; i < targets.length; i++){
+					((Select) branch).setTarget(i, copies.getOrDefault(targets[i], targets[i]));
+				}
+			}
+		}
+		return copies.get(test.getNext());
+	}
+}
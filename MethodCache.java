@@ -0,0 +1,162 @@
+package comp0012.main;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.CPInstruction;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.Select;
+
+
+public class MethodCache
+{
+	static class CachedMethod
+	{
+		//folded code whose constant pool indices point into the small private pool next to it
+		byte[] code;
+		ConstantPoolGen pool;
+
+		CachedMethod(byte[] code, ConstantPoolGen pool)
+		{
+			this.code = code;
+			this.pool = pool;
+		}
+	}
+
+	LinkedHashMap<String, CachedMethod> entries;
+
+	long hits = 0;
+	long misses = 0;
+
+	public MethodCache(int maxEntries)
+	{
+		this.entries = new LinkedHashMap<String, CachedMethod>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedMethod> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public InstructionList replay(String key, ConstantPoolGen cpgen)
+	{
+		//rebuild the folded instructions and move the constants they use into the class being optimized
+		CachedMethod cached;
+		synchronized (this) {
+			cached = entries.get(key);
+			if (cached == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		InstructionList instList = new InstructionList(cached.code);
+		ConstantFolder.mergeConstants(instList, cached.pool, cpgen, 0, new HashMap<>());
+		return instList;
+	}
+
+	public void store(String key, InstructionList folded, ConstantPoolGen cpgen)
+	{
+		//keep only the constants the method uses, so an entry does not pin the whole class pool
+		InstructionList copy = folded.copy();
+		ConstantPoolGen pool = new ConstantPoolGen();
+		ConstantFolder.mergeConstants(copy, cpgen, pool, 0, new HashMap<>());
+		byte[] code = copy.getByteCode();
+		copy.dispose();
+		synchronized (this) {
+			entries.put(key, new CachedMethod(code, pool));
+		}
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "MethodCache[entries=" + entries.size() + ", hits=" + hits + ", misses=" + misses + "]";
+	}
+
+	public static String keyFor(InstructionList instList, ConstantPoolGen cpgen, String config)
+	{
+		//The key must not depend on where the constants sit in the pool, an edit elsewhere in the class shifts
+		//them and replay moves them into the current pool anyway. Every instruction is hashed with its pool index
+		//replaced by the ordinal of the constant it resolves to, in order of first use, and its jump targets by
+		//the ordinal of the target instruction, since LDC_W and LDC make offsets depend on the indices too.
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(config.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			InstructionHandle[] handles = instList.getInstructionHandles();
+			IdentityHashMap<InstructionHandle, Integer> ordinals = new IdentityHashMap<>();
+			for (int i = 0; i < handles.length; i++) {
+				ordinals.put(handles[i], i);
+			}
+			HashMap<String, Integer> constants = new HashMap<>();
+			ConstantPool pool = cpgen.getConstantPool();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			for (InstructionHandle handle : handles) {
+				Instruction inst = handle.getInstruction();
+				if (inst instanceof Select) {
+					Select select = (Select) inst;
+					out.writeByte(inst.getOpcode());
+					for (int match : select.getMatchs()) {
+						out.writeInt(match);
+					}
+					for (InstructionHandle target : select.getTargets()) {
+						out.writeInt(ordinals.get(target));
+					}
+					out.writeInt(ordinals.get(select.getTarget()));
+				} else if (inst instanceof BranchInstruction) {
+					out.writeByte(inst.getOpcode());
+					out.writeInt(ordinals.get(((BranchInstruction) inst).getTarget()));
+				} else if (inst instanceof CPInstruction) {
+					Constant constant = cpgen.getConstant(((CPInstruction) inst).getIndex());
+					String resolved = constant.getTag() + ":" + pool.constantToString(constant);
+					Integer ordinal = constants.get(resolved);
+					if (ordinal == null) {
+						ordinal = constants.size();
+						constants.put(resolved, ordinal);
+						out.writeUTF(resolved);
+						//the first use carries the value, the later ones only its ordinal
+					}
+					CPInstruction copy = (CPInstruction) inst.copy();
+					copy.setIndex(ordinal);
+					copy.dump(out);
+					//the opcode and the other operands, e.g. the dimensions of MULTIANEWARRAY
+				} else {
+					inst.dump(out);
+				}
+			}
+			out.flush();
+			digest.update(bytes.toByteArray());
+			return OptimizedClassCache.toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not hash the method", e);
+			//a ByteArrayOutputStream does not throw
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package comp0012.main;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+public class OptimizedClassCache implements ClassCache
+{
+	//rough per entry overhead of the map node, the key string and the array header
+	static final int ENTRY_OVERHEAD = 128;
+
+	LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+	//access order, the eldest entry is the least recently used one
+
+	long maxBytes;
+	long usedBytes = 0;
+
+	long hits = 0;
+	long misses = 0;
+	long evictions = 0;
+
+	public OptimizedClassCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public synchronized byte[] get(String key)
+	{
+		byte[] value = entries.get(key);
+		if (value == null){
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+
+	@Override
+	public synchronized void put(String key, byte[] value)
+	{
+		long cost = cost(key, value);
+		if (cost > maxBytes){
+			return;
+			//would evict everything else and still not fit
+		}
+		byte[] previous = entries.put(key, value);
+		if (previous != null){
+			usedBytes -= cost(key, previous);
+		}
+		usedBytes += cost;
+
+		Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+		while (usedBytes > maxBytes && it.hasNext()){
+			Map.Entry<String, byte[]> eldest = it.next();
+			usedBytes -= cost(eldest.getKey(), eldest.getValue());
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		usedBytes = 0;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	public synchronized long getUsedBytes()
+	{
+		return usedBytes;
+	}
+
+	public synchronized int getEntryCount()
+	{
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "OptimizedClassCache[entries=" + entries.size() + ", bytes=" + usedBytes + "/" + maxBytes + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+
+	private static long cost(String key, byte[] value)
+	{
+		return value.length + 2L * key.length() + ENTRY_OVERHEAD;
+	}
+
+	public static String keyFor(byte[] classBytes, String config)
+	{
+		//the configuration is part of the key, the same class optimized with other settings is another entry
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(config.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(classBytes);
+			return toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes){
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,231 @@
+package comp0012.main;
+import java.util.ArrayList;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+
+
+//Replaces multiplications, divisions and remainders by a constant with cheaper instructions computing the
+//same bits, for the cases folding leaves behind because only one operand is known:
+//  x * 2^k              x << k, negated for -2^k
+//  x * (2^k + 1)        (x << k) + x
+//  x * (2^k - 1)        (x << k) - x
+//  x / 2^k              (x + ((x >> 31) >>> (32 - k))) >> k, negated for -2^k
+//  x % 2^k              x - ((x + ((x >> 31) >>> (32 - k))) & -2^k), the same for -2^k
+//  Math.pow(x, 2.0)     x * x
+//and the same for longs with 63 and 64. Integer division rounds towards zero, the arithmetic shift rounds
+//down, so a negative x is first moved up by 2^k - 1, which is what (x >> 31) >>> (32 - k) computes without a
+//branch. Both sides wrap around the same way, e.g. MIN_VALUE / -1 and MIN_VALUE * -1 are still MIN_VALUE.
+//StrictMath.pow returns x * x for an exponent of 2.0, NaN and the infinities included, and so does Math.pow on
+//HotSpot, in the interpreter as well as in compiled code.
+//
+//The constant has to be pushed right before the operation, for a multiplication it may also come before a
+//load of the other operand. Multiplying or dividing by 0, 1 and -1 in other ways is left to the identities.
+public class StrengthReduction
+{
+	MethodGen mg;
+	InstructionList instList;
+	ConstantPoolGen cpgen;
+
+	ConstantStack constant = new ConstantStack(1);
+	//reads the value of the constant operand
+	int reduced = 0;
+
+	public StrengthReduction(MethodGen mg, ConstantPoolGen cpgen)
+	{
+		this.mg = mg;
+		this.instList = mg.getInstructionList();
+		this.cpgen = cpgen;
+	}
+
+	public int run()
+	{
+		//returns the number of operations replaced
+		for (InstructionHandle handle = instList.getStart(); handle != null; handle = handle.getNext()){
+			switch (handle.getInstruction().getOpcode()){
+				case Const.IMUL: case Const.LMUL: case Const.IDIV: case Const.LDIV: case Const.IREM: case Const.LREM:
+					handle = reduceArithmetic(handle);
+					break;
+				case Const.INVOKESTATIC:
+					handle = reducePower(handle);
+					break;
+				default:
+			}
+		}
+		return reduced;
+	}
+
+	public int getReduced()
+	{
+		return reduced;
+	}
+
+	private InstructionHandle reduceArithmetic(InstructionHandle op)
+	{
+		//returns the last handle of the code replacing op, op itself if it stays
+		InstructionHandle first = op.getPrev();
+		if (op.hasTargeters() || first == null){
+			return op;
+		}
+		short opcode = op.getInstruction().getOpcode();
+		boolean wide = opcode == Const.LMUL || opcode == Const.LDIV || opcode == Const.LREM;
+		Instruction load = null;
+		if ((opcode == Const.IMUL || opcode == Const.LMUL) && first.getInstruction() instanceof LoadInstruction
+				&& !first.hasTargeters() && first.getPrev() != null){
+			load = first.getInstruction();
+			first = first.getPrev();
+			//c * x, the load is moved before the code for x * c
+		}
+		constant.clear();
+		if (!constant.push(first.getInstruction(), cpgen) || constant.peekType() != (wide ? ConstantStack.LONG : ConstantStack.INT)){
+			return op;
+		}
+		long value = constant.peekLong();
+
+		Instruction[] code;
+		if (opcode == Const.IMUL || opcode == Const.LMUL){
+			code = multiply(value, wide);
+		} else if (opcode == Const.IDIV || opcode == Const.LDIV){
+			code = divide(value, wide);
+		} else {
+			code = remainder(value, wide);
+		}
+		if (code == null){
+			return op;
+		}
+		if (load != null){
+			Instruction[] loaded = new Instruction[code.length + 1];
+			loaded[0] = load.copy();
+			System.arraycopy(code, 0, loaded, 1, code.length);
+			code = loaded;
+		}
+		return replace(first, op, code);
+	}
+
+	private Instruction[] multiply(long value, boolean wide)
+	{
+		long bits = wide ? value : value & 0xFFFFFFFFL;
+		//as an unsigned number of the width of the operation, so MIN_VALUE is 2^31 or 2^63
+		if (Long.bitCount(bits) == 1 && bits != 1){
+			return new Instruction[] {push(Long.numberOfTrailingZeros(bits)), wide ? InstructionConst.LSHL : InstructionConst.ISHL};
+		} else if (value < 0 && Long.bitCount(-value) == 1){
+			int shift = Long.numberOfTrailingZeros(-value);
+			if (shift == 0){
+				return new Instruction[] {wide ? InstructionConst.LNEG : InstructionConst.INEG};
+			}
+			return new Instruction[] {push(shift), wide ? InstructionConst.LSHL : InstructionConst.ISHL, wide ? InstructionConst.LNEG : InstructionConst.INEG};
+		} else if (value > 2 && Long.bitCount(value - 1) == 1){
+			return new Instruction[] {wide ? InstructionConst.DUP2 : InstructionConst.DUP, push(Long.numberOfTrailingZeros(value - 1)),
+					wide ? InstructionConst.LSHL : InstructionConst.ISHL, wide ? InstructionConst.LADD : InstructionConst.IADD};
+		} else if (value > 2 && Long.bitCount(value + 1) == 1){
+			return new Instruction[] {wide ? InstructionConst.DUP2 : InstructionConst.DUP, push(Long.numberOfTrailingZeros(value + 1)),
+					wide ? InstructionConst.LSHL : InstructionConst.ISHL, wide ? InstructionConst.LSUB : InstructionConst.ISUB,
+					wide ? InstructionConst.LNEG : InstructionConst.INEG};
+			//x - (x << k) negated, a long cannot be swapped under the shifted copy
+		}
+		return null;
+	}
+
+	private Instruction[] divide(long value, boolean wide)
+	{
+		if (value == -1){
+			return new Instruction[] {wide ? InstructionConst.LNEG : InstructionConst.INEG};
+		}
+		int shift = shiftOf(value, wide);
+		if (shift <= 0){
+			return null;
+		}
+		ArrayList<Instruction> code = new ArrayList<>();
+		code.add(wide ? InstructionConst.DUP2 : InstructionConst.DUP);
+		addRounding(code, shift, wide);
+		code.add(wide ? InstructionConst.LADD : InstructionConst.IADD);
+		code.add(push(shift));
+		code.add(wide ? InstructionConst.LSHR : InstructionConst.ISHR);
+		if (value < 0){
+			code.add(wide ? InstructionConst.LNEG : InstructionConst.INEG);
+		}
+		return code.toArray(new Instruction[0]);
+	}
+
+	private Instruction[] remainder(long value, boolean wide)
+	{
+		int shift = shiftOf(value, wide);
+		if (shift <= 0){
+			return null;
+		}
+		//the sign of the remainder is the sign of x, the sign of the divisor does not matter
+		ArrayList<Instruction> code = new ArrayList<>();
+		code.add(wide ? InstructionConst.DUP2 : InstructionConst.DUP);
+		code.add(wide ? InstructionConst.DUP2 : InstructionConst.DUP);
+		addRounding(code, shift, wide);
+		code.add(wide ? InstructionConst.LADD : InstructionConst.IADD);
+		code.add(wide ? new PUSH(cpgen, -(1L << shift)).getInstruction() : push(-(1 << shift)));
+		code.add(wide ? InstructionConst.LAND : InstructionConst.IAND);
+		code.add(wide ? InstructionConst.LSUB : InstructionConst.ISUB);
+		return code.toArray(new Instruction[0]);
+	}
+
+	private void addRounding(ArrayList<Instruction> code, int shift, boolean wide)
+	{
+		//turns the copy of x on top into 2^shift - 1 if x is negative and 0 otherwise
+		int bits = wide ? 64 : 32;
+		if (shift == 1){
+			code.add(push(bits - 1));
+			code.add(wide ? InstructionConst.LUSHR : InstructionConst.IUSHR);
+			//the sign bit alone
+		} else {
+			code.add(push(bits - 1));
+			code.add(wide ? InstructionConst.LSHR : InstructionConst.ISHR);
+			code.add(push(bits - shift));
+			code.add(wide ? InstructionConst.LUSHR : InstructionConst.IUSHR);
+		}
+	}
+
+	private static int shiftOf(long value, boolean wide)
+	{
+		//k if the divisor is 2^k or -2^k, -1 if it is not or it is MIN_VALUE, whose negation overflows
+		if (value == 0 || value == (wide ? Long.MIN_VALUE : Integer.MIN_VALUE) || Long.bitCount(Math.abs(value)) != 1){
+			return -1;
+		}
+		return Long.numberOfTrailingZeros(Math.abs(value));
+	}
+
+	private InstructionHandle reducePower(InstructionHandle handle)
+	{
+		//Math.pow(x, 2.0) and StrictMath.pow(x, 2.0) become x * x
+		InvokeInstruction invoke = (InvokeInstruction) handle.getInstruction();
+		String owner = invoke.getReferenceType(cpgen).toString();
+		InstructionHandle exponent = handle.getPrev();
+		if (handle.hasTargeters() || exponent == null || !"pow".equals(invoke.getMethodName(cpgen)) || !"(DD)D".equals(invoke.getSignature(cpgen))
+				|| !(owner.equals("java.lang.Math") || owner.equals("java.lang.StrictMath"))){
+			return handle;
+		}
+		constant.clear();
+		if (!constant.push(exponent.getInstruction(), cpgen) || constant.peekType() != ConstantStack.DOUBLE || constant.popDouble() != 2.0){
+			return handle;
+		}
+		return replace(exponent, handle, new Instruction[] {InstructionConst.DUP2, InstructionConst.DMUL});
+	}
+
+	private Instruction push(int value)
+	{
+		return new PUSH(cpgen, value).getInstruction();
+	}
+
+	private InstructionHandle replace(InstructionHandle first, InstructionHandle last, Instruction[] code)
+	{
+		//code takes the place of first up to last, a jump to first lands on its start and nothing jumps past it
+		InstructionHandle handle = first;
+		first.setInstruction(code[0]);
+		for (int i = 1; i < code.length; i++){
+			handle = instList.append(handle, code[i]);
+		}
+		try {
+			instList.delete(handle.getNext(), last);
+		} catch (TargetLostException e) {
+			throw new IllegalStateException("Jump into the middle of " + first);
+		}
+		reduced++;
+		return handle;
+	}
+}